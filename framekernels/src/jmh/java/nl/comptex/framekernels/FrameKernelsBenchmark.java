@@ -0,0 +1,136 @@
+package nl.comptex.framekernels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nanoseconds per frame of every kernel at resolutions printer cameras commonly stream at. Run
+ * with {@code ./gradlew :framekernels:jmh}, the gc profiler adds the bytes allocated per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameKernelsBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080", "2592x1944", "3840x2160"})
+    public String resolution;
+
+    private I420Image frame;
+    private ByteBuffer y;
+    private ByteBuffer u;
+    private ByteBuffer v;
+    private Nv21Converter converter;
+    private I420Image cropped;
+    private I420Image half;
+    private I420Image snapshot;
+    private I420Image rotated;
+    private LumaStats stats;
+    private byte[] previousLuma;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+
+        frame = new I420Image(width, height);
+        Random random = new Random(42);
+        random.nextBytes(frame.y);
+        random.nextBytes(frame.u);
+        random.nextBytes(frame.v);
+        // Direct buffers, like the planes of a WebRTC I420Buffer.
+        y = toDirect(frame.y);
+        u = toDirect(frame.u);
+        v = toDirect(frame.v);
+
+        converter = new Nv21Converter();
+        cropped = new I420Image(width / 2, height / 2);
+        half = new I420Image(width / 2, height / 2);
+        snapshot = new I420Image(640, 360);
+        rotated = new I420Image(height, width);
+        stats = new LumaStats();
+        previousLuma = frame.y.clone();
+        previousLuma[0] ^= 1;
+    }
+
+    private static ByteBuffer toDirect(byte[] plane) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(plane.length);
+        buffer.put(plane);
+        buffer.rewind();
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] i420ToNv21() {
+        return converter.convert(y, frame.width, u, frame.getChromaWidth(), v, frame.getChromaWidth(),
+                frame.width, frame.height);
+    }
+
+    /** Baseline for i420ToNv21, the conversion loop SnapshotSink used before Nv21Converter. */
+    @Benchmark
+    public byte[] i420ToNv21Legacy() {
+        int width = frame.width;
+        int height = frame.height;
+        int chromaStride = frame.getChromaWidth();
+        int ySize = height * width;
+        ByteBuffer nv21 = ByteBuffer.allocate(ySize + ySize);
+
+        nv21.put(y.duplicate());
+
+        ByteBuffer uv = ByteBuffer.allocate(ySize / 2);
+        for (int i = 0; i < height / 2; i++) {
+            for (int j = 0; j < width / 2; j++) {
+                uv.put(v.get(chromaStride * i + j));
+                uv.put(u.get(chromaStride * i + j));
+            }
+        }
+
+        uv.rewind();
+        nv21.put(uv);
+        return nv21.array();
+    }
+
+    @Benchmark
+    public I420Image cropCenter() {
+        frame.cropInto(frame.width / 4 & ~1, frame.height / 4 & ~1, cropped);
+        return cropped;
+    }
+
+    @Benchmark
+    public I420Image scaleHalf() {
+        frame.scaleInto(half);
+        return half;
+    }
+
+    @Benchmark
+    public I420Image scaleTo360p() {
+        frame.scaleInto(snapshot);
+        return snapshot;
+    }
+
+    @Benchmark
+    public I420Image rotate90() {
+        frame.rotateInto(90, rotated);
+        return rotated;
+    }
+
+    @Benchmark
+    public double lumaStats() {
+        stats.compute(frame.y, frame.width, frame.width, frame.height, 1);
+        return stats.mean;
+    }
+
+    @Benchmark
+    public int lumaDifference() {
+        return LumaStats.countChanged(frame.y, previousLuma, frame.y.length, 16);
+    }
+}
@@ -0,0 +1,64 @@
+package nl.comptex.framekernels;
+
+/**
+ * A tightly packed I420 image, every plane's stride equals its width. Images are meant to be
+ * allocated once per resolution and reused as the destination of the kernels.
+ */
+public class I420Image {
+    public final int width;
+    public final int height;
+    public final byte[] y;
+    public final byte[] u;
+    public final byte[] v;
+
+    public I420Image(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image size must be positive");
+        this.width = width;
+        this.height = height;
+        y = new byte[width * height];
+        u = new byte[getChromaWidth() * getChromaHeight()];
+        v = new byte[getChromaWidth() * getChromaHeight()];
+    }
+
+    public int getChromaWidth() {
+        return (width + 1) / 2;
+    }
+
+    public int getChromaHeight() {
+        return (height + 1) / 2;
+    }
+
+    /** Copies the region at ({@code x}, {@code y}) with the size of {@code destination}. */
+    public void cropInto(int x, int y, I420Image destination) {
+        if ((x & 1) != 0 || (y & 1) != 0)
+            throw new IllegalArgumentException("Crop offset must be even");
+        if (x + destination.width > width || y + destination.height > height)
+            throw new IllegalArgumentException("Crop region is outside the image");
+        PlaneKernels.crop(this.y, width, x, y, destination.width, destination.height, destination.y, destination.width);
+        PlaneKernels.crop(u, getChromaWidth(), x / 2, y / 2, destination.getChromaWidth(), destination.getChromaHeight(), destination.u, destination.getChromaWidth());
+        PlaneKernels.crop(v, getChromaWidth(), x / 2, y / 2, destination.getChromaWidth(), destination.getChromaHeight(), destination.v, destination.getChromaWidth());
+    }
+
+    /** Scales the whole image to the size of {@code destination}. */
+    public void scaleInto(I420Image destination) {
+        PlaneKernels.scale(y, width, width, height, destination.y, destination.width, destination.width, destination.height);
+        PlaneKernels.scale(u, getChromaWidth(), getChromaWidth(), getChromaHeight(),
+                destination.u, destination.getChromaWidth(), destination.getChromaWidth(), destination.getChromaHeight());
+        PlaneKernels.scale(v, getChromaWidth(), getChromaWidth(), getChromaHeight(),
+                destination.v, destination.getChromaWidth(), destination.getChromaWidth(), destination.getChromaHeight());
+    }
+
+    /**
+     * Rotates clockwise by 0, 90, 180 or 270 degrees. For 90 and 270 the destination must have
+     * width and height swapped.
+     */
+    public void rotateInto(int degrees, I420Image destination) {
+        boolean swapped = degrees == 90 || degrees == 270;
+        if (destination.width != (swapped ? height : width) || destination.height != (swapped ? width : height))
+            throw new IllegalArgumentException("Destination has the wrong size for a rotation of " + degrees);
+        PlaneKernels.rotate(y, width, width, height, destination.y, destination.width, degrees);
+        PlaneKernels.rotate(u, getChromaWidth(), getChromaWidth(), getChromaHeight(), destination.u, destination.getChromaWidth(), degrees);
+        PlaneKernels.rotate(v, getChromaWidth(), getChromaWidth(), getChromaHeight(), destination.v, destination.getChromaWidth(), degrees);
+    }
+}
@@ -0,0 +1,52 @@
+package nl.comptex.framekernels;
+
+import java.util.Arrays;
+
+/**
+ * Brightness statistics of a luma plane. An instance is reused between frames, {@link #compute}
+ * overwrites the previous results and doesn't allocate.
+ */
+public class LumaStats {
+    public final int[] histogram = new int[256];
+    public int min;
+    public int max;
+    public double mean;
+    public int samples;
+
+    /** Looks at every {@code step}-th pixel in both directions, 1 looks at all of them. */
+    public void compute(byte[] plane, int stride, int width, int height, int step) {
+        if (step < 1)
+            throw new IllegalArgumentException("Step must be at least 1");
+        Arrays.fill(histogram, 0);
+        long sum = 0;
+        int count = 0;
+        for (int y = 0; y < height; y += step) {
+            int row = y * stride;
+            for (int x = 0; x < width; x += step) {
+                int value = plane[row + x] & 0xFF;
+                histogram[value]++;
+                sum += value;
+                count++;
+            }
+        }
+
+        samples = count;
+        mean = count == 0 ? 0 : (double) sum / count;
+        min = 0;
+        while (min < 255 && histogram[min] == 0)
+            min++;
+        max = 255;
+        while (max > 0 && histogram[max] == 0)
+            max--;
+    }
+
+    /** @return the number of pixels whose value differs by more than {@code threshold}. */
+    public static int countChanged(byte[] a, byte[] b, int length, int threshold) {
+        int changed = 0;
+        for (int i = 0; i < length; i++) {
+            if (Math.abs((a[i] & 0xFF) - (b[i] & 0xFF)) > threshold)
+                changed++;
+        }
+        return changed;
+    }
+}
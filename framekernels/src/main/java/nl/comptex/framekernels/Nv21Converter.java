@@ -0,0 +1,95 @@
+package nl.comptex.framekernels;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs I420 planes into NV21, the layout {@code android.graphics.YuvImage} encodes.
+ * <p>
+ * Output arrays are pooled per resolution and handed out again on the next conversion of the
+ * same size, so a converter must only be used from one thread and callers must be done with the
+ * returned array before converting the next frame.
+ */
+public class Nv21Converter {
+    private static final int POOL_SIZE = 4;
+
+    private final int[] poolWidths = new int[POOL_SIZE];
+    private final int[] poolHeights = new int[POOL_SIZE];
+    private final byte[][] pool = new byte[POOL_SIZE][];
+    private final long[] poolLastUse = new long[POOL_SIZE];
+    private long useCounter;
+
+    private byte[] uRow = new byte[0];
+    private byte[] vRow = new byte[0];
+
+    public static int getNv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    public byte[] convert(I420Image image) {
+        return convert(
+                ByteBuffer.wrap(image.y), image.width,
+                ByteBuffer.wrap(image.u), image.getChromaWidth(),
+                ByteBuffer.wrap(image.v), image.getChromaWidth(),
+                image.width, image.height);
+    }
+
+    /**
+     * Converts the given planes, copying whole rows so padded strides are skipped.
+     * The positions of the plane buffers are restored before returning.
+     */
+    public byte[] convert(ByteBuffer y, int strideY, ByteBuffer u, int strideU, ByteBuffer v, int strideV,
+                          int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        byte[] nv21 = obtain(width, height);
+
+        int yPosition = y.position();
+        for (int row = 0; row < height; row++) {
+            y.position(yPosition + row * strideY);
+            y.get(nv21, row * width, width);
+        }
+        y.position(yPosition);
+
+        if (uRow.length < chromaWidth) {
+            uRow = new byte[chromaWidth];
+            vRow = new byte[chromaWidth];
+        }
+
+        int uPosition = u.position();
+        int vPosition = v.position();
+        int offset = width * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            u.position(uPosition + row * strideU);
+            u.get(uRow, 0, chromaWidth);
+            v.position(vPosition + row * strideV);
+            v.get(vRow, 0, chromaWidth);
+            for (int i = 0; i < chromaWidth; i++) {
+                nv21[offset++] = vRow[i];
+                nv21[offset++] = uRow[i];
+            }
+        }
+        u.position(uPosition);
+        v.position(vPosition);
+
+        return nv21;
+    }
+
+    private byte[] obtain(int width, int height) {
+        useCounter++;
+        int victim = 0;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool[i] != null && poolWidths[i] == width && poolHeights[i] == height) {
+                poolLastUse[i] = useCounter;
+                return pool[i];
+            }
+            if (poolLastUse[i] < poolLastUse[victim])
+                victim = i;
+        }
+
+        pool[victim] = new byte[getNv21Size(width, height)];
+        poolWidths[victim] = width;
+        poolHeights[victim] = height;
+        poolLastUse[victim] = useCounter;
+        return pool[victim];
+    }
+}
@@ -0,0 +1,82 @@
+package nl.comptex.framekernels;
+
+/**
+ * Kernels that work on a single 8 bit plane, given as an array with a row stride. None of them
+ * allocate, the caller provides the destination.
+ */
+public final class PlaneKernels {
+    private PlaneKernels() {
+    }
+
+    /** Copies the {@code width} x {@code height} region starting at ({@code x}, {@code y}). */
+    public static void crop(byte[] source, int sourceStride, int x, int y, int width, int height,
+                            byte[] destination, int destinationStride) {
+        for (int row = 0; row < height; row++)
+            System.arraycopy(source, (y + row) * sourceStride + x, destination, row * destinationStride, width);
+    }
+
+    /**
+     * Scales with an area average, every destination pixel is the mean of the source pixels it
+     * covers. Upscaling degrades to nearest neighbour.
+     */
+    public static void scale(byte[] source, int sourceStride, int sourceWidth, int sourceHeight,
+                             byte[] destination, int destinationStride, int destinationWidth, int destinationHeight) {
+        if (sourceWidth == destinationWidth && sourceHeight == destinationHeight) {
+            crop(source, sourceStride, 0, 0, sourceWidth, sourceHeight, destination, destinationStride);
+            return;
+        }
+
+        for (int dy = 0; dy < destinationHeight; dy++) {
+            int y0 = (int) ((long) dy * sourceHeight / destinationHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (dy + 1) * sourceHeight / destinationHeight));
+            int destinationRow = dy * destinationStride;
+            for (int dx = 0; dx < destinationWidth; dx++) {
+                int x0 = (int) ((long) dx * sourceWidth / destinationWidth);
+                int x1 = Math.max(x0 + 1, (int) ((long) (dx + 1) * sourceWidth / destinationWidth));
+                int sum = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int sourceRow = sy * sourceStride;
+                    for (int sx = x0; sx < x1; sx++)
+                        sum += source[sourceRow + sx] & 0xFF;
+                }
+                int count = (y1 - y0) * (x1 - x0);
+                destination[destinationRow + dx] = (byte) ((sum + count / 2) / count);
+            }
+        }
+    }
+
+    /** Rotates clockwise by 0, 90, 180 or 270 degrees. */
+    public static void rotate(byte[] source, int sourceStride, int width, int height,
+                              byte[] destination, int destinationStride, int degrees) {
+        switch (degrees) {
+            case 0:
+                crop(source, sourceStride, 0, 0, width, height, destination, destinationStride);
+                break;
+            case 90:
+                for (int y = 0; y < height; y++) {
+                    int sourceRow = y * sourceStride;
+                    int column = height - 1 - y;
+                    for (int x = 0; x < width; x++)
+                        destination[x * destinationStride + column] = source[sourceRow + x];
+                }
+                break;
+            case 180:
+                for (int y = 0; y < height; y++) {
+                    int sourceRow = y * sourceStride;
+                    int destinationRow = (height - 1 - y) * destinationStride + width - 1;
+                    for (int x = 0; x < width; x++)
+                        destination[destinationRow - x] = source[sourceRow + x];
+                }
+                break;
+            case 270:
+                for (int y = 0; y < height; y++) {
+                    int sourceRow = y * sourceStride;
+                    for (int x = 0; x < width; x++)
+                        destination[(width - 1 - x) * destinationStride + y] = source[sourceRow + x];
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Rotation must be 0, 90, 180 or 270 degrees");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package nl.comptex.framekernels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks {@link Nv21Converter} against the per-byte loop SnapshotSink used before it. Timing of
+ * both lives in FrameKernelsBenchmark.
+ */
+public class Nv21ConverterTest {
+    @Test
+    public void matchesLegacyConversion() {
+        Planes planes = new Planes(16, 8, 0);
+        byte[] expected = legacyConvert(planes);
+        byte[] actual = new Nv21Converter().convert(
+                planes.y, planes.strideY, planes.u, planes.strideU, planes.v, planes.strideV,
+                planes.width, planes.height);
+        assertArrayEquals(Arrays.copyOf(expected, actual.length), actual);
+    }
+
+    @Test
+    public void respectsPaddedStrides() {
+        Planes padded = new Planes(16, 8, 4);
+        byte[] nv21 = new Nv21Converter().convert(
+                padded.y, padded.strideY, padded.u, padded.strideU, padded.v, padded.strideV,
+                padded.width, padded.height);
+
+        for (int row = 0; row < padded.height; row++) {
+            for (int col = 0; col < padded.width; col++) {
+                assertEquals(padded.y.get(row * padded.strideY + col), nv21[row * padded.width + col]);
+            }
+        }
+        int offset = padded.width * padded.height;
+        for (int row = 0; row < padded.height / 2; row++) {
+            for (int col = 0; col < padded.width / 2; col++) {
+                assertEquals(padded.v.get(row * padded.strideV + col), nv21[offset++]);
+                assertEquals(padded.u.get(row * padded.strideU + col), nv21[offset++]);
+            }
+        }
+        assertEquals(0, padded.y.position());
+    }
+
+    /** The conversion loop from the original SnapshotSink.imageToByteArray, minus the JPEG encode. */
+    private static byte[] legacyConvert(Planes planes) {
+        int width = planes.width;
+        int height = planes.height;
+        int ySize = height * width;
+        int uvSize = ySize / 2;
+        ByteBuffer ib = ByteBuffer.allocate(ySize + ySize);
+
+        ib.put(planes.y.duplicate());
+
+        ByteBuffer uv = ByteBuffer.allocate(uvSize);
+        for (int i = 0; i < height / 2; i++) {
+            for (int j = 0; j < width / 2; j++) {
+                uv.put(planes.v.get(planes.strideV * i + j));
+                uv.put(planes.u.get(planes.strideU * i + j));
+            }
+        }
+
+        uv.rewind();
+        ib.put(uv);
+
+        return ib.array();
+    }
+
+    private static class Planes {
+        final int width;
+        final int height;
+        final int strideY;
+        final int strideU;
+        final int strideV;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        Planes(int width, int height, int padding) {
+            this.width = width;
+            this.height = height;
+            strideY = width + padding;
+            strideU = width / 2 + padding;
+            strideV = width / 2 + padding;
+
+            Random random = new Random(width * 31L + height);
+            y = randomPlane(random, strideY * height);
+            u = randomPlane(random, strideU * height / 2);
+            v = randomPlane(random, strideV * height / 2);
+        }
+
+        private static ByteBuffer randomPlane(Random random, int size) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            ByteBuffer plane = ByteBuffer.allocateDirect(size);
+            plane.put(data);
+            plane.rewind();
+            return plane;
+        }
+    }
+}
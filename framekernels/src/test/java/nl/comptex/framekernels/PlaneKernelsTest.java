@@ -0,0 +1,53 @@
+package nl.comptex.framekernels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PlaneKernelsTest {
+    // 3x2 plane:
+    // 1 2 3
+    // 4 5 6
+    private static final byte[] PLANE = {1, 2, 3, 4, 5, 6};
+
+    @Test
+    public void rotatesClockwise() {
+        byte[] rotated = new byte[6];
+        PlaneKernels.rotate(PLANE, 3, 3, 2, rotated, 2, 90);
+        assertArrayEquals(new byte[]{4, 1, 5, 2, 6, 3}, rotated);
+
+        PlaneKernels.rotate(PLANE, 3, 3, 2, rotated, 3, 180);
+        assertArrayEquals(new byte[]{6, 5, 4, 3, 2, 1}, rotated);
+
+        PlaneKernels.rotate(PLANE, 3, 3, 2, rotated, 2, 270);
+        assertArrayEquals(new byte[]{3, 6, 2, 5, 1, 4}, rotated);
+    }
+
+    @Test
+    public void cropsWithStride() {
+        byte[] cropped = new byte[2];
+        PlaneKernels.crop(PLANE, 3, 1, 1, 2, 1, cropped, 2);
+        assertArrayEquals(new byte[]{5, 6}, cropped);
+    }
+
+    @Test
+    public void scalesWithAreaAverage() {
+        byte[] source = {10, 20, 30, 40, (byte) 200, (byte) 210, (byte) 220, (byte) 230};
+        byte[] scaled = new byte[2];
+        // 4x2 to 2x1, every output pixel averages a 2x2 block.
+        PlaneKernels.scale(source, 4, 4, 2, scaled, 2, 2, 1);
+        assertEquals(110, scaled[0] & 0xFF);
+        assertEquals(130, scaled[1] & 0xFF);
+    }
+
+    @Test
+    public void computesLumaStats() {
+        LumaStats stats = new LumaStats();
+        stats.compute(PLANE, 3, 3, 2, 1);
+        assertEquals(1, stats.min);
+        assertEquals(6, stats.max);
+        assertEquals(3.5, stats.mean, 1e-9);
+        assertEquals(2, LumaStats.countChanged(PLANE, new byte[]{1, 2, 3, 9, 9, 6}, 6, 2));
+    }
+}
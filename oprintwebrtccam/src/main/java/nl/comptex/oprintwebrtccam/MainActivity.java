@@ -14,10 +14,8 @@ import android.util.Log;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.PreferenceManager;
 
-import org.webrtc.EglBase;
-
 import nl.comptex.oprintwebrtccam.databinding.ActivityMainBinding;
-import nl.comptex.oprintwebrtccam.helpers.EglBaseSingleton;
+import nl.comptex.oprintwebrtccam.helpers.PeerConnectionFactoryHolder;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -36,6 +34,14 @@ public class MainActivity extends AppCompatActivity {
 
         binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
+
+        // Long press opens the settings without stopping the stream.
+        binding.surfaceView.setOnLongClickListener(view -> {
+            Intent settings = new Intent(this, SettingsActivity.class);
+            settings.putExtra(SettingsActivity.EXTRA_LIVE, true);
+            startActivity(settings);
+            return true;
+        });
     }
 
     @Override
@@ -94,6 +100,7 @@ public class MainActivity extends AppCompatActivity {
 
     private WebRTCService service;
     private boolean bound = false;
+    private boolean previewInitialized = false;
     /**
      * Defines callbacks for service binding, passed to bindService()
      */
@@ -117,11 +124,13 @@ public class MainActivity extends AppCompatActivity {
 
     private void initAndBindSurfaceView() {
         Log.d(TAG, "initAndBindSurfaceView: ");
-        if (!bound)
+        if (!bound || previewInitialized)
             return;
-        
-        EglBase eglBase = EglBaseSingleton.getEglBase();
-        binding.surfaceView.init(eglBase.getEglBaseContext(), null);
+
+        // Bound means the service already holds the factory, this keeps the EGL context alive for us.
+        PeerConnectionFactoryHolder.acquire(this);
+        binding.surfaceView.init(PeerConnectionFactoryHolder.getEglBase().getEglBaseContext(), null);
+        previewInitialized = true;
         binding.surfaceView.setEnableHardwareScaler(true);
         binding.surfaceView.setMirror(service.isUsingFrontFacingCamera());
         service.addSink(binding.surfaceView);
@@ -129,9 +138,13 @@ public class MainActivity extends AppCompatActivity {
 
     private void releaseSurfaceView() {
         Log.d(TAG, "releaseSurfaceView: ");
-        binding.surfaceView.release();
         if (bound) {
             service.removeSink(binding.surfaceView);
         }
+        if (previewInitialized) {
+            binding.surfaceView.release();
+            PeerConnectionFactoryHolder.release();
+            previewInitialized = false;
+        }
     }
 }
\ No newline at end of file
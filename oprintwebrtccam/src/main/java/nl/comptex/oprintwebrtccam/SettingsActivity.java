@@ -19,19 +19,27 @@ import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import nl.comptex.oprintwebrtccam.databinding.SettingsActivityBinding;
-import nl.comptex.oprintwebrtccam.helpers.CameraHelper;
+import nl.comptex.oprintwebrtccam.helpers.CameraIndex;
+import nl.comptex.oprintwebrtccam.helpers.EncoderProbe;
+import nl.comptex.oprintwebrtccam.helpers.IceServers;
 import pub.devrel.easypermissions.AfterPermissionGranted;
 import pub.devrel.easypermissions.EasyPermissions;
 
 public class SettingsActivity extends AppCompatActivity {
+    /** Set when opened while streaming, changes to resolution, framerate and codecs apply live. */
+    public static final String EXTRA_LIVE = "live";
 
-    private final String[] perms = new String[]{Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO};
+    // The microphone is only requested once audio is turned on.
+    private final String[] perms = new String[]{Manifest.permission.CAMERA};
     private final int PERMISSION_REQUEST_CODE = 125478;
+    private static final int AUDIO_PERMISSION_REQUEST_CODE = 125479;
     private Bundle savedInstanceState;
     SettingsActivityBinding binding;
+    private boolean live;
 
 
     @Override
@@ -46,7 +54,8 @@ public class SettingsActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         this.savedInstanceState = savedInstanceState;
         super.onCreate(this.savedInstanceState);
-        if (WebRTCService.isIsRunning()) {
+        live = getIntent().getBooleanExtra(EXTRA_LIVE, false);
+        if (WebRTCService.isIsRunning() && !live) {
             Intent intent = new Intent(this, MainActivity.class);
             startActivity(intent);
             return;
@@ -58,6 +67,8 @@ public class SettingsActivity extends AppCompatActivity {
         }
 
         initializeView();
+        if (live)
+            Toast.makeText(this, R.string.live_settings_hint, Toast.LENGTH_LONG).show();
     }
 
     @AfterPermissionGranted(PERMISSION_REQUEST_CODE)
@@ -75,7 +86,9 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     public boolean onPrepareOptionsMenu(final Menu menu) {
-        getMenuInflater().inflate(R.menu.start_stream_menu, menu);
+        // Opened from the running stream, going back returns to it.
+        if (!live)
+            getMenuInflater().inflate(R.menu.start_stream_menu, menu);
 
         return super.onCreateOptionsMenu(menu);
     }
@@ -102,24 +115,54 @@ public class SettingsActivity extends AppCompatActivity {
 
     public static class SettingsFragment extends PreferenceFragmentCompat {
         private static final String TAG = "SettingsFragment";
+        private CameraIndex cameraIndex;
 
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             setPreferencesFromResource(R.xml.root_preferences, rootKey);
+
+            // Camera preferences stay disabled until the index is loaded, the first build queries
+            // the camera HAL which can take seconds.
+            setCameraPreferencesEnabled(false);
+            CameraIndex.get(this.getContext(), index -> {
+                if (isAdded())
+                    initializeCameraPreferences(index);
+            });
+
+            findPreference(getString(R.string.audio_preference)).setOnPreferenceChangeListener((preference, newValue) -> {
+                if ((Boolean) newValue && !EasyPermissions.hasPermissions(getContext(), Manifest.permission.RECORD_AUDIO))
+                    EasyPermissions.requestPermissions(getActivity(), getString(R.string.audio_permission_rationale),
+                            AUDIO_PERMISSION_REQUEST_CODE, Manifest.permission.RECORD_AUDIO);
+                return true;
+            });
+
+            ListPreference iceModePref = findPreference(getString(R.string.ice_mode_preference));
+            updateIceServersPreference(iceModePref.getValue());
+            iceModePref.setOnPreferenceChangeListener((preference, newValue) -> {
+                updateIceServersPreference((String) newValue);
+                return true;
+            });
+        }
+
+        private void initializeCameraPreferences(CameraIndex index) {
+            cameraIndex = index;
             ListPreference cameraPref = this.findPreference(this.getString(R.string.camera_preference));
-            String[] cameras = CameraHelper.getCameras(this.getContext());
-            String[] cameraEntries = new String[cameras.length];
+            List<CameraIndex.Camera> cameras = index.getCameras();
+            String[] cameraNames = new String[cameras.size()];
+            String[] cameraEntries = new String[cameras.size()];
 
-            for (int i = 0; i < cameras.length; i++) {
-                cameraEntries[i] = "Camera " + (i+1) + ", " + (CameraHelper.isFrontFacing(this.getContext(), cameras[i]) ? "Front facing" : "Rear facing");
+            for (int i = 0; i < cameras.size(); i++) {
+                cameraNames[i] = cameras.get(i).name;
+                cameraEntries[i] = "Camera " + (i+1) + ", " + (cameras.get(i).frontFacing ? "Front facing" : "Rear facing");
             }
 
             cameraPref.setEntries(cameraEntries);
-            cameraPref.setEntryValues(cameras);
+            cameraPref.setEntryValues(cameraNames);
+            setCameraPreferencesEnabled(true);
 
             String selectedCamera = cameraPref.getValue();
-            if (cameras.length > 0 && !Arrays.asList(cameras).contains(selectedCamera))
-                cameraPref.setValue(cameras[0]);
+            if (cameraNames.length > 0 && !Arrays.asList(cameraNames).contains(selectedCamera))
+                cameraPref.setValue(cameraNames[0]);
             updateResolutionPreference(cameraPref.getValue());
 
             cameraPref.setOnPreferenceChangeListener((preference, newValue) -> {
@@ -133,9 +176,25 @@ public class SettingsActivity extends AppCompatActivity {
             });
         }
 
+        private void setCameraPreferencesEnabled(boolean enabled) {
+            findPreference(getString(R.string.camera_preference)).setEnabled(enabled);
+            findPreference(getString(R.string.resolution_preference)).setEnabled(enabled);
+            findPreference(getString(R.string.framerate_preference)).setEnabled(enabled);
+            findPreference(getString(R.string.snapshot_resolution_preference)).setEnabled(enabled);
+        }
+
+        private List<CaptureFormat> getSupportedFormats(String camera) {
+            CameraIndex.Camera indexed = cameraIndex.getCamera(camera);
+            return indexed != null ? indexed.formats : Collections.emptyList();
+        }
+
+        private void updateIceServersPreference(String iceMode) {
+            findPreference(getString(R.string.ice_servers_preference)).setEnabled(IceServers.MODE_CUSTOM.equals(iceMode));
+        }
+
         private void updateResolutionPreference(String selectedCamera) {
             ListPreference resolutionPref = findPreference(getString(R.string.resolution_preference));
-            List<CaptureFormat> captureFormats = CameraHelper.getSupportedFormats(this.getContext(), selectedCamera);
+            List<CaptureFormat> captureFormats = getSupportedFormats(selectedCamera);
 
             ArrayList<String> resolutions = new ArrayList<>(captureFormats.size());
             for (CaptureFormat format : captureFormats) {
@@ -148,19 +207,41 @@ public class SettingsActivity extends AppCompatActivity {
             resolutionCharSeqs = resolutions.toArray(resolutionCharSeqs);
             resolutionPref.setEntries(resolutionCharSeqs);
             resolutionPref.setEntryValues(resolutionCharSeqs);
+            updateSnapshotResolutionPreference(resolutions);
+            if (resolutions.isEmpty())
+                return;
 
             if (!resolutions.contains(resolutionPref.getValue())) {
-                resolutionPref.setValue(resolutions.get(resolutions.size() / 2));
+                // Largest resolution the encoder probe saw this phone encode in real time, if any.
+                SeekBarPreference frameratePreference = findPreference(getString(R.string.framerate_preference));
+                String probed = EncoderProbe.pickResolution(this.getContext(), resolutions, frameratePreference.getValue());
+                resolutionPref.setValue(probed != null ? probed : resolutions.get(resolutions.size() / 2));
             }
             updateFrameRatePreference(selectedCamera, resolutionPref.getValue());
         }
 
+        private void updateSnapshotResolutionPreference(List<String> resolutions) {
+            ListPreference snapshotPref = findPreference(getString(R.string.snapshot_resolution_preference));
+            CharSequence[] entries = new CharSequence[resolutions.size() + 1];
+            CharSequence[] values = new CharSequence[resolutions.size() + 1];
+            entries[0] = getString(R.string.snapshot_resolution_same);
+            values[0] = "";
+            for (int i = 0; i < resolutions.size(); i++) {
+                entries[i + 1] = resolutions.get(i);
+                values[i + 1] = resolutions.get(i);
+            }
+            snapshotPref.setEntries(entries);
+            snapshotPref.setEntryValues(values);
+            if (!resolutions.contains(snapshotPref.getValue()))
+                snapshotPref.setValue("");
+        }
+
         private void updateFrameRatePreference(String selectedCamera, String resolution) {
             String[] wh = resolution.split("x");
             int width = Integer.parseInt(wh[0]);
             int height = Integer.parseInt(wh[1]);
 
-            List<CaptureFormat> captureFormats = CameraHelper.getSupportedFormats(this.getContext(), selectedCamera);
+            List<CaptureFormat> captureFormats = getSupportedFormats(selectedCamera);
 
             SeekBarPreference frameratePreference = findPreference(getString(R.string.framerate_preference));
             for (CaptureFormat format : captureFormats) {
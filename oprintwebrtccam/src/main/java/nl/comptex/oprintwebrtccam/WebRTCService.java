@@ -3,6 +3,7 @@ package nl.comptex.oprintwebrtccam;
 
 import static org.webrtc.SessionDescription.Type.OFFER;
 
+import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -12,21 +13,27 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Debug;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.Camera1Session;
 import org.webrtc.Camera2Session;
-import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.EglBase;
+import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
@@ -34,27 +41,55 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RtpParameters;
 import org.webrtc.RtpSender;
 import org.webrtc.SessionDescription;
-import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
-import org.webrtc.VideoDecoderFactory;
-import org.webrtc.VideoEncoderFactory;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import nl.comptex.oprintwebrtccam.helpers.BaseVideoEncoderFactory;
+import nl.comptex.oprintwebrtccam.helpers.BitrateController;
 import nl.comptex.oprintwebrtccam.helpers.CameraHelper;
-import nl.comptex.oprintwebrtccam.helpers.EglBaseSingleton;
+import nl.comptex.oprintwebrtccam.helpers.CameraIndex;
+import nl.comptex.oprintwebrtccam.helpers.CaptureScheduler;
+import nl.comptex.oprintwebrtccam.helpers.CaptureTap;
+import nl.comptex.oprintwebrtccam.helpers.EncoderProbe;
+import nl.comptex.oprintwebrtccam.helpers.IceServers;
+import nl.comptex.oprintwebrtccam.helpers.Metrics;
+import nl.comptex.oprintwebrtccam.helpers.MjpegStream;
+import nl.comptex.oprintwebrtccam.helpers.MotionDetector;
+import nl.comptex.oprintwebrtccam.helpers.PeerConnectionFactoryHolder;
 import nl.comptex.oprintwebrtccam.helpers.PeerConnectionObserver;
+import nl.comptex.oprintwebrtccam.helpers.SdpUtils;
+import nl.comptex.oprintwebrtccam.helpers.Snapshot;
+import nl.comptex.oprintwebrtccam.helpers.SnapshotOptions;
 import nl.comptex.oprintwebrtccam.helpers.SnapshotSink;
+import nl.comptex.oprintwebrtccam.helpers.StartupTrace;
+import nl.comptex.oprintwebrtccam.helpers.TimelapseRecorder;
+import nl.comptex.oprintwebrtccam.helpers.VideoLayer;
 import nl.comptex.oprintwebrtccam.helpers.WebServer;
 
 public class WebRTCService extends Service {
@@ -62,6 +97,10 @@ public class WebRTCService extends Service {
     private static final String WEBRTC_CHANNEL = "webrtcchannel";
     private static final String STREAM_ID = "OctoPrintStream";
     private static final String TAG = "WebRTCService";
+    private static final long ANSWER_TIMEOUT_MS = 5000;
+    private static final long ICE_GATHERING_TIMEOUT_MS = 3000;
+    // Answered sessions that aren't connected by then are closed.
+    private static final long CONNECT_TIMEOUT_MS = 30000;
     private static boolean isRunning = false;
 
     private boolean usingFrontFacingCamera;
@@ -69,24 +108,67 @@ public class WebRTCService extends Service {
     private WebServer server;
 
     private PeerConnectionFactory factory;
-    private SurfaceTextureHelper helper;
-
-    private final Object lock = new Object();
-    private PeerConnection connection;
+    private BaseVideoEncoderFactory encoderFactory;
+
+    private final List<PeerSession> sessions = new CopyOnWriteArrayList<>();
+    // Connection that already started gathering candidates for the next viewer, guarded by sessions.
+    private PeerSession prewarmedSession;
+    // Tears down closed sessions off the WebRTC signaling thread.
+    private final ExecutorService sessionExecutor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService statsExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService probeExecutor = Executors.newSingleThreadExecutor();
+    // Running or queued encoder probe, guarded by sessions.
+    private Future<?> probeFuture;
+    private long lastUsageCpuMs;
+    private long lastUsageHeapBytes;
 
     private VideoCapturer capturer;
 
     private VideoSource videoSource;
     private VideoTrack videoTrack;
+    // Both null when audio is off, then no viewer gets an audio track.
     private AudioSource audioSource;
     private AudioTrack audioTrack;
     private String cameraDeviceName;
     private int orientation;
-    private int width;
-    private int height;
-    private int framerate;
-    private Set<String> enabledCodecs;
+    // Written by reconfigure() while the service runs.
+    private volatile int width;
+    private volatile int height;
+    private volatile int framerate;
+    // 0 when snapshots use the stream resolution.
+    private volatile int snapshotWidth;
+    private volatile int snapshotHeight;
+    // What the camera delivers, larger than the stream when snapshots need it.
+    private volatile int captureWidth;
+    private volatile int captureHeight;
+    private volatile int captureFramerate;
+    private volatile Set<String> enabledCodecs;
+    private boolean audioEnabled;
+    private int opusBitrateKbps;
+    private int opusPtimeMs;
+    private boolean opusDtx;
+    private int maxViewers;
+    private List<VideoLayer> videoLayers;
+    private String iceMode;
+    private String customIceServers;
+    private int iceCandidatePoolSize;
+    private boolean continualGathering;
+    private int timelapseInterval;
+    private int timelapseCapacityMb;
+    private boolean motionDetection;
+    private int motionThreshold;
+    private int idleDelaySeconds;
+    private int wakeLatencyMs;
+    private boolean onDemandCapture;
+    private int captureIdleTimeoutSeconds;
+    private int snapshotMaxAge;
     private SnapshotSink sink;
+    private MotionDetector motionDetector;
+    private TimelapseRecorder timelapseRecorder;
+    private CaptureScheduler captureScheduler;
+    // Whether the service itself holds the camera, when capture isn't on demand.
+    private boolean holdingCapture;
+    private final StartupTrace startupTrace = new StartupTrace();
 
     public WebRTCService() {
     }
@@ -96,30 +178,119 @@ public class WebRTCService extends Service {
     @Override
     public void onCreate() {
         getPreferences();
+        startupTrace.mark("preferences");
+
+        boolean reused = PeerConnectionFactoryHolder.acquire(this);
+        startupTrace.mark(reused ? "factory (reused)" : "factory");
 
         createVideoStreamTrack();
-        createAudioStreamTrack();
+        startupTrace.mark("video track");
+        if (audioEnabled) {
+            createAudioStreamTrack();
+            startupTrace.mark("audio track");
+        }
+        createCaptureScheduler();
+        probeEncoders();
+
+        try {
+            timelapseRecorder = new TimelapseRecorder(new File(getFilesDir(), "timelapse"), timelapseCapacityMb * 1024 * 1024, sink);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         server = new WebServer(new WebServer.RequestListener() {
             @Override
-            public String onOffer(String sdp) {
-                if (connection != null)
-                    connection.close();
-                return doAnswer(sdp);
+            public String onOffer(String sdp, boolean trickle) throws WebServer.UnavailableException {
+                return doAnswer(sdp, trickle);
+            }
+
+            @Override
+            public String onViewers() {
+                return getViewers();
+            }
+
+            @Override
+            public boolean onSelectLayer(String sessionId, String layer) {
+                return selectLayer(sessionId, layer);
+            }
+
+            @Override
+            public String onGetConfig() {
+                return getConfig().toString();
+            }
+
+            @Override
+            public String onConfig(JSONObject config) throws JSONException {
+                return applyConfig(config);
+            }
+
+            @Override
+            public void onMetrics(StringBuilder out) {
+                renderMetrics(out);
+            }
+
+            @Override
+            public String onLocalCandidates(String sessionId, long timeoutMs) {
+                return getLocalCandidates(sessionId, timeoutMs);
+            }
+
+            @Override
+            public boolean onRemoteCandidates(String sessionId, JSONArray candidates) throws JSONException {
+                return addRemoteCandidates(sessionId, candidates);
+            }
+
+            @Override
+            public Snapshot onSnapshot(SnapshotOptions options) throws TimeoutException {
+                return sink.getSnapshot(options, SnapshotSink.DEFAULT_TIMEOUT_MS);
             }
 
             @Override
-            public byte[] onSnapshot() {
-                return sink.getSnapshot();
+            public Snapshot onCachedSnapshot(SnapshotOptions options, long maxAgeMs) {
+                return sink.getCachedSnapshot(options, maxAgeMs);
+            }
+
+            @Override
+            public Snapshot onLatestSnapshot(SnapshotOptions options) {
+                return sink.getLatestSnapshot(options);
+            }
+
+            @Override
+            public InputStream onStream(SnapshotOptions options, int maxFps) {
+                captureScheduler.acquire();
+                return new FilterInputStream(new MjpegStream(sink, options, maxFps)) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        if (!closed) {
+                            closed = true;
+                            captureScheduler.release();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public TimelapseRecorder getTimelapseRecorder() {
+                return timelapseRecorder;
             }
         });
+        server.setSnapshotMaxAge(snapshotMaxAge);
+        startupTrace.mark("web server created");
+
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(preferenceListener);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         createNotification();
 
-        capturer.startCapture(width, height, framerate);
+        // On demand the camera starts with the first viewer, snapshot or preview instead.
+        if (!onDemandCapture && !holdingCapture) {
+            holdingCapture = true;
+            captureScheduler.acquire();
+        }
 
         try {
             if (!server.wasStarted())
@@ -127,6 +298,12 @@ public class WebRTCService extends Service {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        startupTrace.mark("web server started");
+
+        schedulePrewarm();
+
+        if (timelapseRecorder != null && timelapseInterval > 0)
+            timelapseRecorder.setInterval(timelapseInterval);
 
         isRunning = true;
         return START_STICKY;
@@ -134,19 +311,41 @@ public class WebRTCService extends Service {
 
     @Override
     public void onDestroy() {
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(preferenceListener);
         server.stop();
-        if (connection != null) {
-            connection.dispose();
-        } else {
-            videoTrack.dispose();
-            audioTrack.dispose();
+        if (timelapseRecorder != null)
+            timelapseRecorder.close();
+        if (motionDetector != null)
+            videoTrack.removeSink(motionDetector);
+        captureScheduler.shutdown();
+        videoTrack.removeSink(captureScheduler);
+        sink.dispose();
+        statsExecutor.shutdownNow();
+        probeExecutor.shutdownNow();
+        sessionExecutor.shutdown();
+        try {
+            sessionExecutor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        for (PeerSession session : sessions) {
+            if (session.connection != null)
+                session.connection.dispose();
+        }
+        sessions.clear();
+        if (prewarmedSession != null) {
+            prewarmedSession.connection.dispose();
+            prewarmedSession = null;
         }
+        videoTrack.dispose();
+        if (audioTrack != null)
+            audioTrack.dispose();
         capturer.dispose();
+        Metrics.markCaptureStopped();
         videoSource.dispose();
-        audioSource.dispose();
-        helper.dispose();
-        factory.dispose();
-        EglBaseSingleton.release();
+        if (audioSource != null)
+            audioSource.dispose();
+        PeerConnectionFactoryHolder.release();
         isRunning = false;
         super.onDestroy();
     }
@@ -164,7 +363,43 @@ public class WebRTCService extends Service {
 
         framerate = prefs.getInt(getString(R.string.framerate_preference), 30);
 
+        String[] snapshotResolution = prefs.getString(getString(R.string.snapshot_resolution_preference), "").split("x");
+        if (snapshotResolution.length == 2) {
+            snapshotWidth = Integer.parseInt(snapshotResolution[0]);
+            snapshotHeight = Integer.parseInt(snapshotResolution[1]);
+        }
+
         enabledCodecs = prefs.getStringSet(getString(R.string.preference_enabled_codecs), new HashSet<>());
+
+        audioEnabled = prefs.getBoolean(getString(R.string.audio_preference), false);
+        if (audioEnabled && ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Audio is enabled but the microphone permission isn't granted, streaming without audio");
+            audioEnabled = false;
+        }
+        opusBitrateKbps = prefs.getInt(getString(R.string.opus_bitrate_preference), 40);
+        opusPtimeMs = Integer.parseInt(prefs.getString(getString(R.string.opus_ptime_preference), "20"));
+        opusDtx = prefs.getBoolean(getString(R.string.opus_dtx_preference), true);
+
+        maxViewers = prefs.getInt(getString(R.string.max_viewers_preference), 4);
+        videoLayers = VideoLayer.parse(prefs.getString(getString(R.string.video_layers_preference), VideoLayer.DEFAULT_LAYERS));
+
+        iceMode = prefs.getString(getString(R.string.ice_mode_preference), IceServers.MODE_PUBLIC_STUN);
+        customIceServers = prefs.getString(getString(R.string.ice_servers_preference), "");
+        iceCandidatePoolSize = prefs.getInt(getString(R.string.ice_candidate_pool_preference), 0);
+        continualGathering = prefs.getBoolean(getString(R.string.ice_continual_gathering_preference), false);
+
+        snapshotMaxAge = prefs.getInt(getString(R.string.snapshot_max_age_preference), 1);
+
+        motionDetection = prefs.getBoolean(getString(R.string.motion_detection_preference), false);
+        motionThreshold = prefs.getInt(getString(R.string.motion_threshold_preference), 1);
+        idleDelaySeconds = prefs.getInt(getString(R.string.idle_delay_preference), 60);
+        wakeLatencyMs = prefs.getInt(getString(R.string.wake_latency_preference), 1000);
+
+        onDemandCapture = prefs.getBoolean(getString(R.string.on_demand_capture_preference), false);
+        captureIdleTimeoutSeconds = prefs.getInt(getString(R.string.capture_idle_timeout_preference), 30);
+
+        timelapseInterval = prefs.getInt(getString(R.string.timelapse_interval_preference), 0);
+        timelapseCapacityMb = prefs.getInt(getString(R.string.timelapse_capacity_preference), 256);
     }
 
     //endregion
@@ -172,36 +407,113 @@ public class WebRTCService extends Service {
     //region MediaStream creation methods
 
     private void createVideoStreamTrack() {
-        PeerConnectionFactory.InitializationOptions initOptions = PeerConnectionFactory.InitializationOptions.builder(this.getApplicationContext())
-                .createInitializationOptions();
-        PeerConnectionFactory.initialize(initOptions);
-
         int angle = getAngle(orientation);
         Camera1Session.fixedRotation = angle;
         Camera2Session.fixedRotation = angle;
 
-        EglBase eglBase = EglBaseSingleton.getEglBase();
-
-        VideoEncoderFactory encoderFactory = new BaseVideoEncoderFactory(eglBase.getEglBaseContext(), enabledCodecs);
-
-        VideoDecoderFactory decoderFactory = new DefaultVideoDecoderFactory(eglBase.getEglBaseContext());
-
-        factory = PeerConnectionFactory.builder()
-                .setVideoEncoderFactory(encoderFactory)
-                .setVideoDecoderFactory(decoderFactory)
-                .createPeerConnectionFactory();
+        factory = PeerConnectionFactoryHolder.getFactory();
+        encoderFactory = PeerConnectionFactoryHolder.getEncoderFactory();
+        encoderFactory.setEnabledCodecs(enabledCodecs);
 
         videoSource = factory.createVideoSource(false);
         videoTrack = factory.createVideoTrack("VIDEO", videoSource);
         videoTrack.setEnabled(true);
 
+        // Snapshots see the frames before they are scaled down for the stream.
         sink = new SnapshotSink();
-        videoTrack.addSink(sink);
 
-        capturer = createVideoCapturer(cameraDeviceName);
-        helper = SurfaceTextureHelper.create("THREAD", eglBase.getEglBaseContext());
-        capturer.initialize(helper, this, videoSource.getCapturerObserver());
+        if (motionDetection) {
+            motionDetector = new MotionDetector(this::onMotionStateChanged, motionThreshold, idleDelaySeconds * 1000L, wakeLatencyMs);
+            videoTrack.addSink(motionDetector);
+        }
+
+        // Usually persisted by the settings screen already, so this doesn't touch the camera HAL.
+        CameraIndex.Camera camera = CameraIndex.getCamera(this, cameraDeviceName);
+        capturer = createVideoCapturer(cameraDeviceName, camera);
+        capturer.initialize(PeerConnectionFactoryHolder.getSurfaceTextureHelper(), this, new CaptureTap(videoSource.getCapturerObserver(), sink));
+        updateCaptureFormat(camera);
+        applyOutputFormat();
+    }
+
+    private void createCaptureScheduler() {
+        captureScheduler = new CaptureScheduler(new CaptureScheduler.Camera() {
+            @Override
+            public void startCapture() {
+                capturer.startCapture(captureWidth, captureHeight, captureFramerate);
+                Metrics.markCaptureStarted();
+            }
+
+            @Override
+            public void stopCapture() {
+                try {
+                    capturer.stopCapture();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                Metrics.markCaptureStopped();
+                sink.onCaptureStopped();
+            }
+
+            @Override
+            public void changeCaptureFormat() {
+                capturer.changeCaptureFormat(captureWidth, captureHeight, captureFramerate);
+            }
+
+            @Override
+            public void onFirstFrame() {
+                startupTrace.finish("first frame");
+            }
+        }, captureIdleTimeoutSeconds * 1000L);
+        videoTrack.addSink(captureScheduler);
+        // Snapshots and time-lapse frames keep the camera running for the idle timeout.
+        sink.setRequestListener(captureScheduler::touch);
+    }
+
+    /**
+     * Benchmarks the encoders at the configured resolution in the background, once per
+     * configuration, and ranks codecs by the results. If none keeps up, smaller camera
+     * resolutions are probed too so the settings screen can suggest one. Only runs while no
+     * viewer is connected, an offer stops it and it starts over once the last viewer is gone.
+     */
+    private void probeEncoders() {
+        EncoderProbe probe = new EncoderProbe(this, encoderFactory);
+        int bitrateBps = videoLayers.get(0).maxBitrateBps;
+        synchronized (sessions) {
+            // Viewers' encoders would compete with the probe for the hardware.
+            if (!sessions.isEmpty() || (probeFuture != null && !probeFuture.isDone()))
+                return;
+            try {
+                probeFuture = probeExecutor.submit(() -> probeEncoders(probe, bitrateBps));
+            } catch (RejectedExecutionException e) {
+                // The service is being destroyed.
+            }
+        }
+    }
+
+    private void probeEncoders(EncoderProbe probe, int bitrateBps) {
+        List<EncoderProbe.Result> results = probe.probe(width, height, framerate, bitrateBps);
+        if (Thread.currentThread().isInterrupted())
+            return;
+        encoderFactory.setProbeResults(results);
+        if (EncoderProbe.pickCodec(results) != null)
+            return;
 
+        Log.w(TAG, "No hardware encoder keeps up with " + width + "x" + height + "@" + framerate);
+        CameraIndex.Camera camera = CameraIndex.get(this).getCamera(cameraDeviceName);
+        if (camera == null)
+            return;
+        List<CaptureFormat> formats = new ArrayList<>(camera.formats);
+        Collections.sort(formats, (a, b) -> Integer.compare(b.width * b.height, a.width * a.height));
+        for (CaptureFormat format : formats) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            if (format.width * format.height >= width * height)
+                continue;
+            if (EncoderProbe.pickCodec(probe.probe(format.width, format.height, framerate, bitrateBps)) != null) {
+                Log.i(TAG, format.width + "x" + format.height + "@" + framerate + " can be encoded in real time");
+                return;
+            }
+        }
     }
 
     private int getAngle(int orientation) {
@@ -218,8 +530,8 @@ public class WebRTCService extends Service {
         }
     }
 
-    private VideoCapturer createVideoCapturer(String deviceName) {
-        usingFrontFacingCamera = CameraHelper.isFrontFacing(this, deviceName);
+    private VideoCapturer createVideoCapturer(String deviceName, @Nullable CameraIndex.Camera camera) {
+        usingFrontFacingCamera = camera != null ? camera.frontFacing : CameraHelper.isFrontFacing(this, deviceName);
         return CameraHelper.createCapturer(this, deviceName);
     }
 
@@ -244,14 +556,28 @@ public class WebRTCService extends Service {
         audioTrack.setEnabled(true);
     }
 
-    private void setMaxBitrate(String trackKind, int maxBitrateKbps) {
-        RtpSender localSender = null;
+    /**
+     * Opus settings for the offer. The sender configures its encoder from the format parameters of
+     * the remote description, so this is how an answerer picks them.
+     */
+    private Map<String, String> getOpusParameters() {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("maxaveragebitrate", Integer.toString(opusBitrateKbps * 1000));
+        parameters.put("ptime", Integer.toString(opusPtimeMs));
+        parameters.put("usedtx", opusDtx ? "1" : "0");
+        return parameters;
+    }
+
+    private static RtpSender findSender(PeerConnection connection, String trackKind) {
         for (RtpSender sender : connection.getSenders()) {
-            if (Objects.requireNonNull(sender.track()).kind().equals(trackKind)) {
-                localSender = sender;
-                break;
-            }
+            if (Objects.requireNonNull(sender.track()).kind().equals(trackKind))
+                return sender;
         }
+        return null;
+    }
+
+    private void setMaxBitrate(PeerConnection connection, String trackKind, int maxBitrateKbps) {
+        RtpSender localSender = findSender(connection, trackKind);
 
         Log.d(TAG, "Requested max "+trackKind+" bitrate: " + maxBitrateKbps);
         if (localSender == null) {
@@ -274,33 +600,191 @@ public class WebRTCService extends Service {
     }
 
 
-    private String doAnswer(String offerSdp) {
+    private void startBitrateController(PeerSession session) {
+        synchronized (session) {
+            if (session.bitrateController != null)
+                return;
+            RtpSender sender = findSender(session.connection, MediaStreamTrack.VIDEO_TRACK_KIND);
+            if (sender == null) {
+                Log.w(TAG, "Sender is not ready.");
+                return;
+            }
+            session.bitrateController = new BitrateController(session.id, session.connection, sender, framerate, videoLayers, statsExecutor);
+            if (motionDetector != null)
+                session.bitrateController.setIdle(motionDetector.isIdle(), motionDetector.getIdleFramerate());
+            session.bitrateController.start();
+        }
+    }
+
+    /** Drops the capture output to the idle framerate while nothing moves. */
+    private void onMotionStateChanged(boolean idle) {
+        int idleFramerate = motionDetector.getIdleFramerate();
+        try {
+            statsExecutor.execute(() -> {
+                applyOutputFormat();
+                for (PeerSession session : sessions) {
+                    BitrateController controller = session.bitrateController;
+                    if (controller != null)
+                        controller.setIdle(idle, idleFramerate);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    /** Scales the track down to the stream format when the camera captures larger for snapshots. */
+    private void applyOutputFormat() {
+        boolean idle = motionDetector != null && motionDetector.isIdle();
+        int outputFramerate = idle ? Math.min(motionDetector.getIdleFramerate(), framerate) : framerate;
+        videoSource.adaptOutputFormat(width, height, outputFramerate);
+    }
+
+    private boolean selectLayer(String sessionId, String layer) {
+        PeerSession session = findSession(sessionId);
+        if (session == null)
+            return false;
+        BitrateController controller = session.bitrateController;
+        return controller != null && controller.setLayer(layer);
+    }
+
+    private String getViewers() {
+        try {
+            JSONArray viewers = new JSONArray();
+            for (PeerSession session : sessions) {
+                JSONObject viewer = new JSONObject();
+                viewer.put("session", session.id);
+                viewer.put("trickle", session.trickle);
+                BitrateController controller = session.bitrateController;
+                if (controller != null)
+                    viewer.put("video", controller.toJson());
+                viewers.put(viewer);
+            }
+            JSONObject message = new JSONObject();
+            message.put("maxViewers", maxViewers);
+            JSONArray layers = new JSONArray();
+            for (VideoLayer layer : videoLayers)
+                layers.put(layer.name);
+            message.put("layers", layers);
+            message.put("viewers", viewers);
+            return message.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void renderMetrics(StringBuilder out) {
+        startupTrace.render(out);
+
+        Metrics.writeHeader(out, "octocam_audio_enabled", "gauge", "Whether viewers get an audio track");
+        Metrics.writeSample(out, "octocam_audio_enabled", null, audioTrack != null ? 1 : 0);
+
+        Metrics.writeHeader(out, "octocam_peer_connections", "gauge", "Active peer connections");
+        Metrics.writeSample(out, "octocam_peer_connections", null, sessions.size());
+
+        // Samples of one metric must be contiguous, so write them metric by metric.
+        String[][] perConnection = {
+                {"octocam_peer_outbound_bitrate_bps", "Outbound video bitrate per connection"},
+                {"octocam_peer_outbound_fps", "Encoded video frames per second per connection"},
+                {"octocam_peer_encode_time_ms", "Average encode time per frame per connection"},
+                {"octocam_peer_fraction_lost", "Fraction of video packets lost as reported by the receiver"},
+        };
+        for (int metric = 0; metric < perConnection.length; metric++) {
+            Metrics.writeHeader(out, perConnection[metric][0], "gauge", perConnection[metric][1]);
+            for (PeerSession session : sessions) {
+                BitrateController controller = session.bitrateController;
+                if (controller == null)
+                    continue;
+                double value;
+                switch (metric) {
+                    case 0:
+                        value = controller.getSendBitrateBps();
+                        break;
+                    case 1:
+                        value = controller.getFramesPerSecond();
+                        break;
+                    case 2:
+                        value = controller.getEncodeTimeMs();
+                        break;
+                    default:
+                        value = controller.getFractionLost();
+                        break;
+                }
+                Metrics.writeSample(out, perConnection[metric][0], "session=\"" + session.id + "\"", value);
+            }
+        }
+    }
+
+    private String doAnswer(String offerSdp, boolean trickle) throws WebServer.UnavailableException {
         MediaConstraints constraints = new MediaConstraints();
+        // Without a track and nothing to receive the audio m-line is rejected, so no audio
+        // transport or codec is set up for it.
+        if (audioTrack == null)
+            constraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "false"));
+
+        PeerSession session;
+        synchronized (sessions) {
+            if (sessions.size() >= maxViewers)
+                throw new WebServer.UnavailableException("Viewer limit of " + maxViewers + " reached");
+            session = prewarmedSession;
+            prewarmedSession = null;
+            if (session == null)
+                session = new PeerSession();
+            session.offerReceivedAtMs = SystemClock.elapsedRealtime();
+            session.trickle = trickle;
+            session.holdsCapture = true;
+            captureScheduler.acquire();
+            sessions.add(session);
+            // Stopped probes keep nothing, they run again once the last viewer is gone.
+            if (probeFuture != null)
+                probeFuture.cancel(true);
+        }
 
-        connection = createPeerConnection(factory);
+        if (session.connection == null)
+            session.connection = createPeerConnection(factory, session);
+        else
+            Log.d(TAG, "Using pre-warmed peer connection");
+        PeerConnection connection = session.connection;
+        schedulePrewarm();
+        logViewerUsage();
+        // Answers follow the codec order of the offer, so put our ranking in there.
+        offerSdp = SdpUtils.preferCodecs(offerSdp, "video", encoderFactory.getCodecPreference());
+        if (audioTrack != null)
+            offerSdp = SdpUtils.setFormatParameters(offerSdp, "audio", "opus", getOpusParameters());
         connection.setRemoteDescription(new SimpleSdpObserver(), new SessionDescription(OFFER, offerSdp));
 
         connection.createAnswer(new SimpleSdpObserver() {
             @Override
             public void onCreateSuccess(SessionDescription sessionDescription) {
-                connection.setLocalDescription(new SimpleSdpObserver(), sessionDescription);
+                connection.setLocalDescription(new SimpleSdpObserver() {
+                    @Override
+                    public void onSetSuccess() {
+                        session.localDescriptionSet.countDown();
+                    }
+                }, sessionDescription);
                 Log.d(TAG, "Generated initial answer");
             }
         }, constraints);
 
-        synchronized (lock) {
-            try {
-                if (connection.iceGatheringState() != PeerConnection.IceGatheringState.COMPLETE) {
-                    Log.d(TAG, "Waiting for ICE to complete");
-                    lock.wait();
-                    Log.d(TAG, "ICE gathering completed, continuing");
-                } else {
-                    Log.d(TAG, "ICE gathering already complete, continuing");
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        try {
+            if (!session.localDescriptionSet.await(ANSWER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out creating answer");
+                closeSession(session);
                 return null;
             }
+            // With trickle ICE the candidates follow through /webcam/candidates, answer right away.
+            if (!trickle) {
+                Log.d(TAG, "Waiting for ICE to complete");
+                if (session.gatheringComplete.await(ICE_GATHERING_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    Log.d(TAG, "ICE gathering completed, continuing");
+                else
+                    Log.w(TAG, "ICE gathering timed out, answering with the candidates gathered so far");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            closeSession(session);
+            return null;
         }
 
         try {
@@ -308,56 +792,472 @@ public class WebRTCService extends Service {
             SessionDescription description = connection.getLocalDescription();
             message.put("type", description.type.canonicalForm());
             message.put("sdp", description.description);
+            message.put("session", session.id);
             Log.d(TAG, "Sending final answer");
+            session.answeredAtMs = SystemClock.elapsedRealtime();
+            scheduleConnectDeadline(session);
+            return message.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            closeSession(session);
+            return null;
+        }
+
+    }
+
+    /**
+     * Closes the session if it isn't connected {@link #CONNECT_TIMEOUT_MS} after its answer. A
+     * trickle viewer that leaves before sending candidates never gets ICE to fail, and would
+     * hold its viewer slot and the camera forever.
+     */
+    private void scheduleConnectDeadline(PeerSession session) {
+        try {
+            statsExecutor.schedule(() -> {
+                if (session.connected)
+                    return;
+                Log.w(TAG, "Viewer " + session.id + " didn't connect within " + CONNECT_TIMEOUT_MS + " ms of its answer");
+                closeSession(session);
+            }, CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    /**
+     * Waits at most {@code timeoutMs} for local candidates of a trickle session.
+     *
+     * @return the candidates gathered since the last call, or null for an unknown session.
+     */
+    private String getLocalCandidates(String sessionId, long timeoutMs) {
+        PeerSession session = findSession(sessionId);
+        if (session == null)
+            return null;
+
+        List<IceCandidate> candidates;
+        boolean complete;
+        synchronized (session.candidates) {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+            long remaining = timeoutMs;
+            while (session.candidates.isEmpty() && !session.gatheringDone && remaining > 0) {
+                try {
+                    session.candidates.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - SystemClock.elapsedRealtime();
+            }
+            candidates = new ArrayList<>(session.candidates);
+            session.candidates.clear();
+            complete = session.gatheringDone;
+        }
+
+        try {
+            JSONArray array = new JSONArray();
+            for (IceCandidate candidate : candidates) {
+                JSONObject json = new JSONObject();
+                json.put("candidate", candidate.sdp);
+                json.put("sdpMid", candidate.sdpMid);
+                json.put("sdpMLineIndex", candidate.sdpMLineIndex);
+                array.put(json);
+            }
+            JSONObject message = new JSONObject();
+            message.put("candidates", array);
+            message.put("complete", complete);
             return message.toString();
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
         }
+    }
+
+    private boolean addRemoteCandidates(String sessionId, JSONArray candidates) throws JSONException {
+        PeerSession session = findSession(sessionId);
+        if (session == null)
+            return false;
+
+        for (int i = 0; i < candidates.length(); i++) {
+            JSONObject json = candidates.getJSONObject(i);
+            String sdp = json.getString("candidate");
+            // An empty candidate only signals the end of the remote candidates.
+            if (sdp.isEmpty())
+                continue;
+            session.connection.addIceCandidate(new IceCandidate(
+                    json.optString("sdpMid"), json.optInt("sdpMLineIndex"), sdp));
+        }
+        return true;
+    }
+
+    private PeerSession findSession(String sessionId) {
+        for (PeerSession session : sessions) {
+            if (session.id.equals(sessionId))
+                return session;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the connection for the next viewer ahead of time when a candidate pool is
+     * configured, so its candidates are already gathered when the offer arrives.
+     */
+    private void schedulePrewarm() {
+        if (iceCandidatePoolSize == 0)
+            return;
 
+        try {
+            sessionExecutor.execute(() -> {
+                synchronized (sessions) {
+                    if (prewarmedSession != null)
+                        return;
+                }
+                PeerSession session = new PeerSession();
+                session.connection = createPeerConnection(factory, session);
+                synchronized (sessions) {
+                    if (prewarmedSession == null) {
+                        prewarmedSession = session;
+                        return;
+                    }
+                }
+                session.connection.dispose();
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Not pre-warming, service is shutting down");
+        }
     }
 
-    private PeerConnection createPeerConnection(PeerConnectionFactory factory) {
-        ArrayList<PeerConnection.IceServer> iceServers = new ArrayList<>();
-        String URL = "stun:stun.l.google.com:19302";
-        iceServers.add(PeerConnection.IceServer.builder(URL).createIceServer());
-        PeerConnection.RTCConfiguration config = new PeerConnection.RTCConfiguration(iceServers);
+    private PeerConnection.RTCConfiguration createRtcConfiguration() {
+        PeerConnection.RTCConfiguration config = new PeerConnection.RTCConfiguration(
+                IceServers.create(iceMode, customIceServers));
         config.enableCpuOveruseDetection = false;
+        config.iceCandidatePoolSize = iceCandidatePoolSize;
+        if (continualGathering)
+            config.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        if (IceServers.MODE_LAN.equals(iceMode)) {
+            // Only enumerate local UDP interfaces, there is nothing to reach beyond the LAN.
+            config.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+            config.candidateNetworkPolicy = PeerConnection.CandidateNetworkPolicy.LOW_COST;
+        }
+        return config;
+    }
+
+    private PeerConnection createPeerConnection(PeerConnectionFactory factory, PeerSession session) {
+        PeerConnection.RTCConfiguration config = createRtcConfiguration();
 
         PeerConnection.Observer pcObserver = new PeerConnectionObserver() {
             @Override
             public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
                 super.onIceConnectionChange(iceConnectionState);
-                if (iceConnectionState == PeerConnection.IceConnectionState.CONNECTED) {
-                    setMaxBitrate(MediaStreamTrack.VIDEO_TRACK_KIND, 4000);
-                    setMaxBitrate(MediaStreamTrack.AUDIO_TRACK_KIND, 40);
+                switch (iceConnectionState) {
+                    case CONNECTED:
+                        session.connected = true;
+                        logConnectTime(session);
+                        startBitrateController(session);
+                        if (audioTrack != null)
+                            setMaxBitrate(session.connection, MediaStreamTrack.AUDIO_TRACK_KIND, opusBitrateKbps);
+                        break;
+                    case FAILED:
+                    case CLOSED:
+                        closeSession(session);
+                        break;
                 }
             }
 
             public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
                 super.onIceGatheringChange(iceGatheringState);
                 if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
-                    synchronized (lock) {
-                        Log.d(TAG, "gathering complete, notifying...");
-                        lock.notify();
+                    Log.d(TAG, "gathering complete, notifying...");
+                    synchronized (session.candidates) {
+                        session.gatheringDone = true;
+                        session.candidates.notifyAll();
                     }
+                    session.gatheringComplete.countDown();
+                }
+            }
+
+            @Override
+            public void onIceCandidate(IceCandidate iceCandidate) {
+                super.onIceCandidate(iceCandidate);
+                if (!session.trickle)
+                    return;
+                synchronized (session.candidates) {
+                    session.candidates.add(iceCandidate);
+                    session.candidates.notifyAll();
                 }
             }
         };
 
         PeerConnection peerConnection = factory.createPeerConnection(config, pcObserver);
         assert peerConnection != null;
+        // All viewers share the same tracks, so the camera is only captured once.
         List<String> streamIds = Collections.singletonList(STREAM_ID);
         peerConnection.addTrack(videoTrack, streamIds);
-        peerConnection.addTrack(audioTrack, streamIds);
+        if (audioTrack != null)
+            peerConnection.addTrack(audioTrack, streamIds);
         return peerConnection;
     }
 
+    private void closeSession(PeerSession session) {
+        if (!sessions.remove(session))
+            return;
+
+        Log.d(TAG, "Closing viewer session, " + sessions.size() + " remaining");
+        if (session.holdsCapture)
+            captureScheduler.release();
+        synchronized (session) {
+            if (session.bitrateController != null)
+                session.bitrateController.stop();
+        }
+        try {
+            sessionExecutor.execute(() -> {
+                session.connection.dispose();
+                logViewerUsage();
+            });
+        } catch (RejectedExecutionException e) {
+            // The service is being destroyed and disposes the connection itself.
+            sessions.add(session);
+        }
+        if (sessions.isEmpty())
+            probeEncoders();
+    }
+
+    private void logConnectTime(PeerSession session) {
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, String.format(Locale.US,
+                "Viewer %s connected %d ms after its offer (%s ICE, answer sent after %d ms)",
+                session.id, now - session.offerReceivedAtMs, session.trickle ? "trickle" : "vanilla",
+                session.answeredAtMs - session.offerReceivedAtMs));
+    }
+
+    /** Logs memory and CPU usage, and the change since the viewer count last changed. */
+    private void logViewerUsage() {
+        long cpuMs = android.os.Process.getElapsedCpuTime();
+        long heapBytes = Debug.getNativeHeapAllocatedSize();
+        Log.i(TAG, String.format(Locale.US,
+                "Viewers: %d, native heap: %.1f MB (%+.1f MB), process CPU: %d ms (%+d ms)",
+                sessions.size(),
+                heapBytes / 1048576.0, (heapBytes - lastUsageHeapBytes) / 1048576.0,
+                cpuMs, cpuMs - lastUsageCpuMs));
+        lastUsageCpuMs = cpuMs;
+        lastUsageHeapBytes = heapBytes;
+    }
+
+    /** A single viewer and the state needed to answer its offer. */
+    private static class PeerSession {
+        final String id = UUID.randomUUID().toString();
+        volatile boolean trickle;
+        volatile long offerReceivedAtMs;
+        volatile long answeredAtMs;
+        volatile boolean connected;
+        final CountDownLatch localDescriptionSet = new CountDownLatch(1);
+        final CountDownLatch gatheringComplete = new CountDownLatch(1);
+        volatile PeerConnection connection;
+        volatile BitrateController bitrateController;
+        volatile boolean holdsCapture;
+
+        // Local candidates not yet fetched by a trickle client, also guards gatheringDone.
+        final List<IceCandidate> candidates = new ArrayList<>();
+        boolean gatheringDone;
+    }
+
+    //endregion
+
+    //region Live reconfiguration
+
+    // Held here because SharedPreferences only keeps a weak reference to its listeners.
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener = (prefs, key) -> {
+        if (!getString(R.string.resolution_preference).equals(key)
+                && !getString(R.string.framerate_preference).equals(key)
+                && !getString(R.string.snapshot_resolution_preference).equals(key)
+                && !getString(R.string.preference_enabled_codecs).equals(key))
+            return;
+
+        String[] resolution = prefs.getString(getString(R.string.resolution_preference), width + "x" + height).split("x");
+        String[] snapshotResolution = prefs.getString(getString(R.string.snapshot_resolution_preference), "").split("x");
+        boolean snapshotSet = snapshotResolution.length == 2;
+        try {
+            reconfigure(Integer.parseInt(resolution[0]), Integer.parseInt(resolution[1]),
+                    prefs.getInt(getString(R.string.framerate_preference), framerate),
+                    snapshotSet ? Integer.parseInt(snapshotResolution[0]) : 0,
+                    snapshotSet ? Integer.parseInt(snapshotResolution[1]) : 0,
+                    prefs.getStringSet(getString(R.string.preference_enabled_codecs), enabledCodecs));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Not applying settings: " + e.getMessage());
+        }
+    };
+
+    private JSONObject getConfig() {
+        JSONObject config = new JSONObject();
+        try {
+            config.put("width", width);
+            config.put("height", height);
+            config.put("framerate", framerate);
+            config.put("snapshotWidth", snapshotWidth);
+            config.put("snapshotHeight", snapshotHeight);
+            config.put("captureWidth", captureWidth);
+            config.put("captureHeight", captureHeight);
+            config.put("captureFramerate", captureFramerate);
+            config.put("codecs", new JSONArray(enabledCodecs));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return config;
+    }
+
+    /** Applies a /config request and persists it, so the settings screen and restarts agree. */
+    private String applyConfig(JSONObject request) throws JSONException {
+        Set<String> codecs = enabledCodecs;
+        if (request.has("codecs")) {
+            JSONArray array = request.getJSONArray("codecs");
+            codecs = new HashSet<>();
+            for (int i = 0; i < array.length(); i++)
+                codecs.add(array.getString(i));
+        }
+        int newWidth = request.optInt("width", width);
+        int newHeight = request.optInt("height", height);
+        int newFramerate = request.optInt("framerate", framerate);
+        int newSnapshotWidth = request.optInt("snapshotWidth", snapshotWidth);
+        int newSnapshotHeight = request.optInt("snapshotHeight", snapshotHeight);
+
+        List<String> renegotiate = reconfigure(newWidth, newHeight, newFramerate, newSnapshotWidth, newSnapshotHeight, codecs);
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putString(getString(R.string.resolution_preference), newWidth + "x" + newHeight)
+                .putInt(getString(R.string.framerate_preference), newFramerate)
+                .putString(getString(R.string.snapshot_resolution_preference), newSnapshotWidth > 0 ? newSnapshotWidth + "x" + newSnapshotHeight : "")
+                .putStringSet(getString(R.string.preference_enabled_codecs), codecs)
+                .apply();
+
+        JSONObject config = getConfig();
+        config.put("renegotiate", new JSONArray(renegotiate));
+        return config.toString();
+    }
+
+    /**
+     * Switches capture format and codecs without touching the running peer connections. The
+     * camera session is swapped with changeCaptureFormat and the encoders follow the new frame
+     * size on their own. Codec changes only apply to new connections, existing ones keep the
+     * codec they negotiated. A snapshot resolution of 0x0 follows the stream.
+     *
+     * @return ids of the sessions whose negotiated codec isn't enabled anymore and should
+     * renegotiate.
+     * @throws IllegalArgumentException when the camera doesn't support the format.
+     */
+    private synchronized List<String> reconfigure(int newWidth, int newHeight, int newFramerate,
+                                                  int newSnapshotWidth, int newSnapshotHeight, Set<String> codecs) {
+        if (codecs.isEmpty())
+            throw new IllegalArgumentException("At least one codec has to be enabled");
+        if ((newSnapshotWidth == 0) != (newSnapshotHeight == 0))
+            throw new IllegalArgumentException("Snapshot width and height have to be set together");
+        CameraIndex.Camera camera = CameraIndex.getCamera(this, cameraDeviceName);
+        if (camera != null) {
+            checkFormat(camera, newWidth, newHeight, newFramerate);
+            if (newSnapshotWidth > 0 && getMaxFramerate(camera, newSnapshotWidth, newSnapshotHeight) == 0)
+                throw new IllegalArgumentException(newSnapshotWidth + "x" + newSnapshotHeight + " isn't supported by the camera");
+        }
+
+        if (newWidth != width || newHeight != height || newFramerate != framerate
+                || newSnapshotWidth != snapshotWidth || newSnapshotHeight != snapshotHeight) {
+            width = newWidth;
+            height = newHeight;
+            framerate = newFramerate;
+            snapshotWidth = newSnapshotWidth;
+            snapshotHeight = newSnapshotHeight;
+            int oldWidth = captureWidth;
+            int oldHeight = captureHeight;
+            int oldFramerate = captureFramerate;
+            updateCaptureFormat(camera);
+            if (captureWidth != oldWidth || captureHeight != oldHeight || captureFramerate != oldFramerate) {
+                Log.i(TAG, "Switching capture to " + captureWidth + "x" + captureHeight + "@" + captureFramerate);
+                captureScheduler.changeCaptureFormat();
+            }
+            applyOutputFormat();
+        }
+
+        List<String> renegotiate = new ArrayList<>();
+        if (codecs.equals(enabledCodecs))
+            return renegotiate;
+
+        Log.i(TAG, "Enabled codecs changed to " + codecs);
+        enabledCodecs = new HashSet<>(codecs);
+        encoderFactory.setEnabledCodecs(enabledCodecs);
+        // A pre-warmed connection already took the old codec list, replace it.
+        PeerSession stale;
+        synchronized (sessions) {
+            stale = prewarmedSession;
+            prewarmedSession = null;
+        }
+        if (stale != null) {
+            try {
+                sessionExecutor.execute(() -> stale.connection.dispose());
+            } catch (RejectedExecutionException e) {
+                stale.connection.dispose();
+            }
+            schedulePrewarm();
+        }
+
+        for (PeerSession session : sessions) {
+            SessionDescription description = session.connection != null ? session.connection.getLocalDescription() : null;
+            String codec = description != null ? SdpUtils.getCodec(description.description, "video") : null;
+            if (codec != null && !codecs.contains(codec))
+                renegotiate.add(session.id);
+        }
+        return renegotiate;
+    }
+
+    /**
+     * Captures at the snapshot resolution when it is larger than the stream, so snapshots get the
+     * full frame and the encoders only the downscaled track. The camera may not reach the stream
+     * framerate at that size, the stream then gets what the camera delivers.
+     */
+    private void updateCaptureFormat(@Nullable CameraIndex.Camera camera) {
+        captureWidth = width;
+        captureHeight = height;
+        captureFramerate = framerate;
+        if (snapshotWidth * snapshotHeight <= width * height)
+            return;
+
+        int maxFramerate = camera != null ? getMaxFramerate(camera, snapshotWidth, snapshotHeight) : 0;
+        if (maxFramerate == 0) {
+            Log.w(TAG, "Camera doesn't support " + snapshotWidth + "x" + snapshotHeight + ", snapshots use the stream resolution");
+            return;
+        }
+        if (maxFramerate < framerate)
+            Log.w(TAG, "Camera reaches only " + maxFramerate + " fps at " + snapshotWidth + "x" + snapshotHeight + ", streaming at that");
+        captureWidth = snapshotWidth;
+        captureHeight = snapshotHeight;
+        captureFramerate = Math.min(framerate, maxFramerate);
+    }
+
+    /** @return the highest framerate the camera supports at this resolution, 0 when it doesn't support it. */
+    private static int getMaxFramerate(CameraIndex.Camera camera, int width, int height) {
+        int maxFramerate = 0;
+        for (CaptureFormat format : camera.formats) {
+            if (format.width == width && format.height == height)
+                maxFramerate = Math.max(maxFramerate, format.framerate.max / 1000);
+        }
+        return maxFramerate;
+    }
+
+    private static void checkFormat(CameraIndex.Camera camera, int width, int height, int framerate) {
+        boolean resolutionSupported = false;
+        for (CaptureFormat format : camera.formats) {
+            if (format.width != width || format.height != height)
+                continue;
+            resolutionSupported = true;
+            if (framerate * 1000 >= format.framerate.min && framerate * 1000 <= format.framerate.max)
+                return;
+        }
+        throw new IllegalArgumentException(resolutionSupported
+                ? framerate + " fps isn't supported at " + width + "x" + height
+                : width + "x" + height + " isn't supported by the camera");
+    }
+
     //endregion
 
     //region Binding logic and methods
 
     private final IBinder binder = new LocalBinder();
+    // Bound previews, each holds the camera once however often the activity rebinds.
+    private final Set<SurfaceViewRenderer> previewSinks = new HashSet<>();
 
     /**
      * Class used for the client Binder.  Because we know this service always
@@ -378,11 +1278,19 @@ public class WebRTCService extends Service {
     public void addSink(SurfaceViewRenderer surfaceView) {
         Log.d(TAG, "addSink: " + surfaceView.hashCode());
         videoTrack.addSink(surfaceView);
+        synchronized (previewSinks) {
+            if (previewSinks.add(surfaceView))
+                captureScheduler.acquire();
+        }
     }
 
     public void removeSink(SurfaceViewRenderer surfaceView) {
         Log.d(TAG, "removeSink: " + surfaceView.hashCode());
         videoTrack.removeSink(surfaceView);
+        synchronized (previewSinks) {
+            if (previewSinks.remove(surfaceView))
+                captureScheduler.release();
+        }
     }
 
     public boolean isUsingFrontFacingCamera() {
@@ -1,53 +1,177 @@
 package nl.comptex.oprintwebrtccam.helpers;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
 import org.webrtc.VideoCodecInfo;
 import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-/** Helper class that combines HW and SW encoders. */
-public class BaseVideoEncoderFactory extends DefaultVideoEncoderFactory {
+/**
+ * Helper class that combines HW and SW encoders.
+ * <p>
+ * Codecs are ranked: healthy hardware encoders first, in the order of {@link #CODEC_RANKING},
+ * then codecs that only have a software encoder. Hardware encoders are watched by
+ * {@link MonitoredVideoEncoder}; one that stalls or falls behind is swapped for software within
+ * the session, and its codec is not encoded in hardware again until the app restarts, so the next
+ * viewer negotiates the next codec in the ranking.
+ * <p>
+ * Once {@link EncoderProbe} results are set, the codec whose hardware encoder was fastest is
+ * ranked first and hardware encoders that couldn't keep up are ranked like software ones.
+ */
+public class BaseVideoEncoderFactory implements VideoEncoderFactory {
 
     private static final String TAG = "BaseVideoEncoderFactory";
-    private final Collection<String> enabledCodecs;
+    // Monitoring windows that overlap a probe by less than this are excused.
+    private static final long PROBE_GRACE_MS = 10000;
+    private static final List<String> CODEC_RANKING = Arrays.asList("H264", "VP8", "VP9", "AV1");
+
+    private volatile Collection<String> enabledCodecs;
+    private final HardwareVideoEncoderFactory hardwareFactory;
+    private final SoftwareVideoEncoderFactory softwareFactory = new SoftwareVideoEncoderFactory();
+    // Codec name to the reason its hardware encoder was given up on.
+    private final Map<String, String> unhealthyCodecs = new ConcurrentHashMap<>();
+    private volatile String probedCodec;
+    private volatile Set<String> slowCodecs = Collections.emptySet();
+    // Whether EncoderProbe is running a hardware encoder, and when it last released one.
+    private volatile boolean probing;
+    private volatile long probeReleasedAtMs;
 
     /**
      * Create encoder factory using default hardware encoder factory.
      */
     public BaseVideoEncoderFactory(EglBase.Context eglContext, Collection<String> enabledCodecs) {
-        super(eglContext, true, true);
+        hardwareFactory = new HardwareVideoEncoderFactory(eglContext, true, true);
+        this.enabledCodecs = enabledCodecs;
+    }
+
+    /** Takes effect for the next offer, the factory outlives services with other settings. */
+    public void setEnabledCodecs(Collection<String> enabledCodecs) {
         this.enabledCodecs = enabledCodecs;
     }
 
     @Nullable
     @Override
     public VideoEncoder createEncoder(VideoCodecInfo info) {
-        VideoEncoder encoder = super.createEncoder(info);
-        if (encoder == null)
-            return null;
+        VideoEncoder software = softwareFactory.createEncoder(info);
+        VideoEncoder hardware = unhealthyCodecs.containsKey(info.name) ? null : hardwareFactory.createEncoder(info);
+        Log.d(TAG, "Creating " + info.name + " encoder, hardware available: " + (hardware != null)
+                + ", software available: " + (software != null));
+
+        if (hardware != null)
+            hardware = new MonitoredVideoEncoder(hardware, info.name, this::onEncoderUnhealthy);
+        if (hardware != null && software != null)
+            return new VideoEncoderFallback(software, hardware);
+        return hardware != null ? hardware : software;
+    }
+
+    /** Unmonitored hardware encoder, for {@link EncoderProbe}. */
+    @Nullable
+    VideoEncoder createHardwareEncoder(VideoCodecInfo info) {
+        return hardwareFactory.createEncoder(info);
+    }
+
+    /** Marks the hardware encoders as shared with {@link EncoderProbe}, for as long as it runs one. */
+    void setProbing(boolean probing) {
+        this.probing = probing;
+        if (!probing)
+            probeReleasedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    public void setProbeResults(List<EncoderProbe.Result> results) {
+        Set<String> slow = new HashSet<>();
+        for (EncoderProbe.Result result : results) {
+            if (result.hardware && !result.keepsUp())
+                slow.add(result.codec);
+        }
+        EncoderProbe.Result best = EncoderProbe.pickCodec(results);
+        slowCodecs = slow;
+        probedCodec = best != null ? best.codec : null;
+    }
 
-        Log.d(TAG, "Using hardware encoder: " + encoder.isHardwareEncoder());
-        return encoder;
+    private boolean onEncoderUnhealthy(String codecName, String reason) {
+        // A viewer encoding alongside the probe competes with it for the codec, that says
+        // nothing about the encoder on its own.
+        if (probing || (probeReleasedAtMs != 0 && SystemClock.elapsedRealtime() - probeReleasedAtMs < PROBE_GRACE_MS)) {
+            Log.i(TAG, codecName + " hardware encoder " + reason + " while it was being probed");
+            return false;
+        }
+        unhealthyCodecs.put(codecName, reason);
+        return true;
     }
 
     @Override
     public VideoCodecInfo[] getSupportedCodecs() {
-        VideoCodecInfo[] infos = super.getSupportedCodecs();
+        Set<String> hardwareCodecs = getHealthyHardwareCodecs();
 
-        ArrayList<VideoCodecInfo> finalList = new ArrayList<>(infos.length);
+        // Same codec and profile can be offered by both factories, keep one of each.
+        Map<String, VideoCodecInfo> codecs = new LinkedHashMap<>();
+        for (VideoCodecInfo info : hardwareFactory.getSupportedCodecs())
+            codecs.put(info.name + info.params, info);
+        for (VideoCodecInfo info : softwareFactory.getSupportedCodecs()) {
+            if (!codecs.containsKey(info.name + info.params))
+                codecs.put(info.name + info.params, info);
+        }
 
-        for (VideoCodecInfo info : infos) {
+        List<VideoCodecInfo> finalList = new ArrayList<>(codecs.size());
+        for (VideoCodecInfo info : codecs.values()) {
             if (enabledCodecs.contains(info.name))
                 finalList.add(info);
         }
+        // Stable, so profiles of one codec keep libwebrtc's order.
+        Collections.sort(finalList, (a, b) -> Integer.compare(getRank(a.name, hardwareCodecs), getRank(b.name, hardwareCodecs)));
 
         return finalList.toArray(new VideoCodecInfo[0]);
     }
+
+    /** Enabled codec names, most preferred first, used to reorder the codecs of an offer. */
+    public List<String> getCodecPreference() {
+        Set<String> hardwareCodecs = getHealthyHardwareCodecs();
+        List<String> names = new ArrayList<>();
+        for (VideoCodecInfo info : getSupportedCodecs()) {
+            if (!names.contains(info.name))
+                names.add(info.name);
+        }
+        Collections.sort(names, (a, b) -> Integer.compare(getRank(a, hardwareCodecs), getRank(b, hardwareCodecs)));
+        return names;
+    }
+
+    public Map<String, String> getUnhealthyCodecs() {
+        return Collections.unmodifiableMap(unhealthyCodecs);
+    }
+
+    private Set<String> getHealthyHardwareCodecs() {
+        Set<String> names = new HashSet<>();
+        for (VideoCodecInfo info : hardwareFactory.getSupportedCodecs()) {
+            if (!unhealthyCodecs.containsKey(info.name) && !slowCodecs.contains(info.name))
+                names.add(info.name);
+        }
+        return names;
+    }
+
+    private int getRank(String name, Set<String> hardwareCodecs) {
+        if (name.equals(probedCodec) && hardwareCodecs.contains(name))
+            return -1;
+        int rank = CODEC_RANKING.indexOf(name);
+        if (rank == -1)
+            rank = CODEC_RANKING.size();
+        return hardwareCodecs.contains(name) ? rank : CODEC_RANKING.size() + 1 + rank;
+    }
 }
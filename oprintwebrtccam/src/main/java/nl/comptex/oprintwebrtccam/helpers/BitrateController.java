@@ -0,0 +1,345 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts bitrate, resolution and framerate of one video sender to the network and CPU.
+ * <p>
+ * Every poll reads RTT, loss, send bitrate, encode time and the quality limitation reason from
+ * getStats. Congestion is loss, high or growing RTT, or the encoder being limited by bandwidth.
+ * The bandwidth estimate isn't used to decide, libwebrtc caps it near our own max bitrate so it
+ * would only ever confirm the current cap. Bitrate steps up when the network is clean and the
+ * encoder actually fills its cap, a static scene that doesn't need the bitrate stays where it is.
+ * Bitrate only steps down after {@link #DOWNGRADE_SAMPLES} bad polls in a row and only steps up
+ * after {@link #UPGRADE_SAMPLES} good ones, so it doesn't oscillate.
+ * Resolution and framerate follow from the bitrate by picking one of the configured
+ * {@link VideoLayer}s, and move further down the layers while the encoder can't keep up. A viewer
+ * can also be pinned to a layer.
+ */
+public class BitrateController {
+    private static final String TAG = "BitrateController";
+
+    public static final int INITIAL_BITRATE_BPS = 4_000_000;
+    private static final int MIN_BITRATE_BPS = 250_000;
+    private static final long POLL_INTERVAL_MS = 2000;
+    private static final int DOWNGRADE_SAMPLES = 2;
+    private static final int UPGRADE_SAMPLES = 5;
+    private static final int MAX_DECISIONS = 20;
+    // Cap while the scene is static, see MotionDetector.
+    private static final int IDLE_BITRATE_BPS = 250_000;
+    // The encoder counts as using its cap above this fraction of it.
+    private static final double CAP_USED = 0.8;
+    // RTT this far above the lowest seen means queues are building up.
+    private static final double RTT_GROWTH_MS = 100;
+
+    private final String name;
+    private final PeerConnection connection;
+    private final RtpSender sender;
+    private final int maxFramerate;
+    // Sorted from the highest to the lowest bitrate.
+    private final List<VideoLayer> layers;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    private int bitrateBps;
+    // What the last apply() set on the sender, including layer and idle caps.
+    private int appliedBitrateBps;
+    private int bitrateLevel;
+    private int cpuLevelOffset;
+    private int pinnedLevel = -1;
+    private int badSamples;
+    private int goodSamples;
+    private int cpuLimitedSamples;
+    private int cpuIdleSamples;
+    private boolean idle;
+    private int idleFramerate;
+    private final ArrayDeque<String> decisions = new ArrayDeque<>();
+
+    // Last poll, used to turn the cumulative counters into rates.
+    private long lastTimestampUs;
+    private long lastBytesSent;
+    private long lastFramesEncoded;
+    private double lastTotalEncodeTime;
+
+    // Most recent measurements.
+    private double roundTripTimeMs = Double.NaN;
+    private double minRoundTripTimeMs = Double.NaN;
+    private double fractionLost = Double.NaN;
+    private double availableOutgoingBitrateBps = Double.NaN;
+    private double sendBitrateBps = Double.NaN;
+    private double framesPerSecond = Double.NaN;
+    private double encodeTimeMs = Double.NaN;
+    private String qualityLimitationReason = "none";
+
+    public BitrateController(String name, PeerConnection connection, RtpSender sender, int maxFramerate,
+                             List<VideoLayer> layers, ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.connection = connection;
+        this.sender = sender;
+        this.maxFramerate = maxFramerate;
+        this.layers = layers;
+        this.scheduler = scheduler;
+        bitrateBps = Math.min(INITIAL_BITRATE_BPS, getMaxBitrateBps());
+    }
+
+    private int getMaxBitrateBps() {
+        return layers.get(0).maxBitrateBps;
+    }
+
+    /**
+     * Pins the viewer to the layer with the given name, or returns to automatic selection when
+     * {@code layerName} is null.
+     *
+     * @return false when there is no layer with that name.
+     */
+    public synchronized boolean setLayer(String layerName) {
+        int level = -1;
+        if (layerName != null) {
+            for (int i = 0; i < layers.size(); i++) {
+                if (layers.get(i).name.equals(layerName))
+                    level = i;
+            }
+            if (level == -1)
+                return false;
+        }
+        pinnedLevel = level;
+        if (task != null)
+            apply(layerName == null ? "automatic layer" : "pinned to " + layerName);
+        return true;
+    }
+
+    public synchronized void start() {
+        apply("initial settings");
+        task = scheduler.scheduleAtFixedRate(
+                () -> connection.getStats(this::onStats), POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null)
+            task.cancel(false);
+        task = null;
+    }
+
+    /** Caps bitrate and framerate while nothing moves, the ladder keeps adapting underneath. */
+    public synchronized void setIdle(boolean idle, int idleFramerate) {
+        if (this.idle == idle && this.idleFramerate == idleFramerate)
+            return;
+        this.idle = idle;
+        this.idleFramerate = idleFramerate;
+        if (task != null)
+            apply(idle ? "scene static" : "motion");
+    }
+
+    private synchronized void onStats(RTCStatsReport report) {
+        if (task == null)
+            return;
+
+        long timestampUs = 0;
+        long bytesSent = -1;
+        long framesEncoded = -1;
+        double totalEncodeTime = -1;
+        for (RTCStats stats : report.getStatsMap().values()) {
+            Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case "outbound-rtp":
+                    if (!"video".equals(members.get("kind")))
+                        break;
+                    timestampUs = (long) stats.getTimestampUs();
+                    bytesSent = getLong(members, "bytesSent");
+                    framesEncoded = getLong(members, "framesEncoded");
+                    totalEncodeTime = getDouble(members, "totalEncodeTime");
+                    Object reason = members.get("qualityLimitationReason");
+                    if (reason != null)
+                        qualityLimitationReason = reason.toString();
+                    break;
+                case "remote-inbound-rtp":
+                    if (!"video".equals(members.get("kind")))
+                        break;
+                    fractionLost = getDouble(members, "fractionLost");
+                    break;
+                case "candidate-pair":
+                    if (!Boolean.TRUE.equals(members.get("nominated")) || !"succeeded".equals(members.get("state")))
+                        break;
+                    roundTripTimeMs = getDouble(members, "currentRoundTripTime") * 1000;
+                    if (!Double.isNaN(roundTripTimeMs) && !(roundTripTimeMs >= minRoundTripTimeMs))
+                        minRoundTripTimeMs = roundTripTimeMs;
+                    availableOutgoingBitrateBps = getDouble(members, "availableOutgoingBitrate");
+                    break;
+            }
+        }
+
+        if (timestampUs == 0)
+            return;
+        if (lastTimestampUs != 0 && timestampUs > lastTimestampUs) {
+            double seconds = (timestampUs - lastTimestampUs) / 1e6;
+            long frames = framesEncoded - lastFramesEncoded;
+            sendBitrateBps = (bytesSent - lastBytesSent) * 8 / seconds;
+            framesPerSecond = frames / seconds;
+            encodeTimeMs = frames > 0 ? (totalEncodeTime - lastTotalEncodeTime) * 1000 / frames : Double.NaN;
+            adapt();
+        }
+        lastTimestampUs = timestampUs;
+        lastBytesSent = bytesSent;
+        lastFramesEncoded = framesEncoded;
+        lastTotalEncodeTime = totalEncodeTime;
+    }
+
+    private void adapt() {
+        boolean rttGrowing = roundTripTimeMs > minRoundTripTimeMs + RTT_GROWTH_MS;
+        // Our own cap also makes the encoder report bandwidth limitation, only an estimate below
+        // the cap means the network is the limit.
+        boolean networkLimited = "bandwidth".equals(qualityLimitationReason)
+                && availableOutgoingBitrateBps < appliedBitrateBps;
+        boolean congested = fractionLost > 0.1 || roundTripTimeMs > 500 || rttGrowing || networkLimited;
+        // Only probe upwards when the encoder is held back by the cap, not by a static scene.
+        boolean capUsed = sendBitrateBps >= appliedBitrateBps * CAP_USED;
+        boolean clear = !(fractionLost > 0.02) && !rttGrowing && !networkLimited && !idle && capUsed;
+
+        badSamples = congested ? badSamples + 1 : 0;
+        goodSamples = clear ? goodSamples + 1 : 0;
+
+        String reason = null;
+        if (badSamples >= DOWNGRADE_SAMPLES && bitrateBps > MIN_BITRATE_BPS) {
+            int target = (int) (bitrateBps * 0.7);
+            // Below our cap the estimate is real and worth following.
+            if (availableOutgoingBitrateBps > 0 && availableOutgoingBitrateBps < bitrateBps)
+                target = (int) Math.min(target, availableOutgoingBitrateBps * 0.9);
+            bitrateBps = Math.max(MIN_BITRATE_BPS, target);
+            badSamples = 0;
+            reason = "congestion";
+        } else if (goodSamples >= UPGRADE_SAMPLES && bitrateBps < getMaxBitrateBps()) {
+            bitrateBps = Math.min(getMaxBitrateBps(), (int) (bitrateBps * 1.15));
+            goodSamples = 0;
+            reason = "headroom";
+        }
+
+        // The encoder falling behind is handled here since CPU overuse detection is disabled.
+        double frameBudgetMs = 1000.0 / maxFramerate;
+        boolean cpuLimited = "cpu".equals(qualityLimitationReason) || encodeTimeMs > frameBudgetMs * 0.8;
+        boolean cpuIdle = !cpuLimited && encodeTimeMs < frameBudgetMs * 0.5;
+        cpuLimitedSamples = cpuLimited ? cpuLimitedSamples + 1 : 0;
+        cpuIdleSamples = cpuIdle ? cpuIdleSamples + 1 : 0;
+        if (cpuLimitedSamples >= DOWNGRADE_SAMPLES && cpuLevelOffset < layers.size() - 1) {
+            cpuLevelOffset++;
+            cpuLimitedSamples = 0;
+            reason = reason == null ? "encoder overloaded" : reason + ", encoder overloaded";
+        } else if (cpuIdleSamples >= UPGRADE_SAMPLES && cpuLevelOffset > 0) {
+            cpuLevelOffset--;
+            cpuIdleSamples = 0;
+            reason = reason == null ? "encoder idle" : reason + ", encoder idle";
+        }
+
+        if (reason != null)
+            apply(reason);
+    }
+
+    // A layer is used once the bitrate exceeds what the layer below it would need.
+    private int getLevel() {
+        if (pinnedLevel != -1)
+            return pinnedLevel;
+        bitrateLevel = 0;
+        while (bitrateLevel < layers.size() - 1 && bitrateBps < layers.get(bitrateLevel + 1).maxBitrateBps)
+            bitrateLevel++;
+        return Math.min(layers.size() - 1, bitrateLevel + cpuLevelOffset);
+    }
+
+    private void apply(String reason) {
+        VideoLayer layer = layers.get(getLevel());
+        double scale = layer.scaleResolutionDownBy;
+        int framerate = Math.min(maxFramerate, layer.maxFramerate);
+        int maxBitrateBps = Math.min(bitrateBps, layer.maxBitrateBps);
+        if (idle) {
+            framerate = Math.min(framerate, idleFramerate);
+            maxBitrateBps = Math.min(maxBitrateBps, IDLE_BITRATE_BPS);
+        }
+
+        RtpParameters parameters = sender.getParameters();
+        if (parameters.encodings.size() == 0) {
+            Log.w(TAG, "RtpParameters are not ready.");
+            return;
+        }
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            encoding.maxBitrateBps = maxBitrateBps;
+            encoding.scaleResolutionDownBy = scale;
+            encoding.maxFramerate = framerate;
+        }
+        if (!sender.setParameters(parameters)) {
+            Log.e(TAG, "RtpSender.setParameters failed.");
+            return;
+        }
+        appliedBitrateBps = maxBitrateBps;
+
+        String decision = String.format(Locale.US,
+                "%s: %s at %d kbps, scale 1/%.1f, %d fps (rtt %.0f ms, loss %.3f, available %.0f kbps, encode %.1f ms, limited by %s)",
+                reason, layer.name, maxBitrateBps / 1000, scale, framerate, roundTripTimeMs, fractionLost,
+                availableOutgoingBitrateBps / 1000, encodeTimeMs, qualityLimitationReason);
+        Log.i(TAG, name + " " + decision);
+        decisions.addLast(decision);
+        while (decisions.size() > MAX_DECISIONS)
+            decisions.removeFirst();
+    }
+
+    public synchronized double getSendBitrateBps() {
+        return sendBitrateBps;
+    }
+
+    public synchronized double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    public synchronized double getEncodeTimeMs() {
+        return encodeTimeMs;
+    }
+
+    public synchronized double getFractionLost() {
+        return fractionLost;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("targetBitrateBps", bitrateBps);
+        json.put("layer", layers.get(getLevel()).name);
+        json.put("pinned", pinnedLevel != -1);
+        putIfKnown(json, "roundTripTimeMs", roundTripTimeMs);
+        putIfKnown(json, "fractionLost", fractionLost);
+        putIfKnown(json, "availableOutgoingBitrateBps", availableOutgoingBitrateBps);
+        putIfKnown(json, "sendBitrateBps", sendBitrateBps);
+        putIfKnown(json, "framesPerSecond", framesPerSecond);
+        putIfKnown(json, "encodeTimeMs", encodeTimeMs);
+        json.put("qualityLimitationReason", qualityLimitationReason);
+        json.put("decisions", new JSONArray(decisions));
+        return json;
+    }
+
+    private static void putIfKnown(JSONObject json, String key, double value) throws JSONException {
+        if (!Double.isNaN(value))
+            json.put(key, value);
+    }
+
+    private static long getLong(Map<String, Object> members, String key) {
+        Object value = members.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double getDouble(Map<String, Object> members, String key) {
+        Object value = members.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
@@ -0,0 +1,203 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cameras, their facing and capture formats, queried from the camera HAL once and persisted.
+ * Querying formats is slow on low-end phones and on Camera1 even opens each camera, listing the
+ * camera names is cheap, so the index is rebuilt only when that list or the OS build changes.
+ * <p>
+ * Persisted as one line per camera: {@code name<TAB>front<TAB>WxH@min-max,...} with the
+ * framerates in fps * 1000 like {@link CaptureFormat.FramerateRange}.
+ */
+public class CameraIndex {
+    private static final String TAG = "CameraIndex";
+    private static final String PREFERENCES_NAME = "camera_index";
+    private static final String KEY_INDEX = "index";
+    private static final String KEY_BUILD = "build";
+    private static final String KEY_CAMERAS = "cameras";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "CameraIndex"));
+    // Read without the class lock, so lookups don't wait for a build in progress.
+    private static volatile CameraIndex cached;
+
+    public interface Listener {
+        /** Called on the main thread. */
+        void onCameraIndex(CameraIndex index);
+    }
+
+    public static class Camera {
+        public final String name;
+        public final boolean frontFacing;
+        public final List<CaptureFormat> formats;
+
+        Camera(String name, boolean frontFacing, List<CaptureFormat> formats) {
+            this.name = name;
+            this.frontFacing = frontFacing;
+            this.formats = Collections.unmodifiableList(formats);
+        }
+    }
+
+    private final List<Camera> cameras;
+    // The camera names the index was built for, as joined by join().
+    private final String cameraNames;
+
+    private CameraIndex(List<Camera> cameras, String cameraNames) {
+        this.cameras = Collections.unmodifiableList(cameras);
+        this.cameraNames = cameraNames;
+    }
+
+    public List<Camera> getCameras() {
+        return cameras;
+    }
+
+    @Nullable
+    public Camera getCamera(String name) {
+        for (Camera camera : cameras) {
+            if (camera.name.equals(name))
+                return camera;
+        }
+        return null;
+    }
+
+    /** Loads or builds the index in the background. */
+    public static void get(Context context, Listener listener) {
+        Context appContext = context.getApplicationContext();
+        Handler handler = new Handler(Looper.getMainLooper());
+        executor.execute(() -> {
+            CameraIndex index = get(appContext);
+            handler.post(() -> listener.onCameraIndex(index));
+        });
+    }
+
+    /**
+     * One camera, without waiting for the index to be built. When it isn't loaded or persisted
+     * yet only this camera is queried, the full index is built in the background.
+     *
+     * @return null when there is no camera by that name.
+     */
+    @Nullable
+    public static Camera getCamera(Context context, String name) {
+        String[] names = CameraHelper.getCameras(context);
+        CameraIndex index = load(context, join(names));
+        if (index != null)
+            return index.getCamera(name);
+
+        Context appContext = context.getApplicationContext();
+        executor.execute(() -> get(appContext));
+        for (String cameraName : names) {
+            if (cameraName.equals(name))
+                return new Camera(name, CameraHelper.isFrontFacing(context, name), CameraHelper.getSupportedFormats(context, name));
+        }
+        return null;
+    }
+
+    /** Loads the index, building it first when the cameras changed. May block on the camera HAL. */
+    public static synchronized CameraIndex get(Context context) {
+        String[] names = CameraHelper.getCameras(context);
+        String cameraNames = join(names);
+        CameraIndex index = load(context, cameraNames);
+        if (index != null)
+            return index;
+
+        long start = System.nanoTime();
+        List<Camera> cameras = new ArrayList<>();
+        for (String name : names)
+            cameras.add(new Camera(name, CameraHelper.isFrontFacing(context, name), CameraHelper.getSupportedFormats(context, name)));
+        index = new CameraIndex(cameras, cameraNames);
+        Log.i(TAG, "Indexed " + cameras.size() + " cameras in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_INDEX, index.serialize())
+                .putString(KEY_BUILD, Build.FINGERPRINT)
+                .putString(KEY_CAMERAS, cameraNames)
+                .apply();
+        cached = index;
+        return index;
+    }
+
+    /** The cached or persisted index for these cameras, or null when it has to be built. */
+    @Nullable
+    private static CameraIndex load(Context context, String cameraNames) {
+        CameraIndex index = cached;
+        if (index != null && cameraNames.equals(index.cameraNames))
+            return index;
+
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (!cameraNames.equals(preferences.getString(KEY_CAMERAS, null))
+                || !Build.FINGERPRINT.equals(preferences.getString(KEY_BUILD, null)))
+            return null;
+        index = parse(preferences.getString(KEY_INDEX, ""), cameraNames);
+        if (index != null)
+            cached = index;
+        return index;
+    }
+
+    private String serialize() {
+        StringBuilder out = new StringBuilder();
+        for (Camera camera : cameras) {
+            out.append(camera.name).append('\t').append(camera.frontFacing ? '1' : '0').append('\t');
+            for (int i = 0; i < camera.formats.size(); i++) {
+                CaptureFormat format = camera.formats.get(i);
+                if (i > 0)
+                    out.append(',');
+                out.append(format.width).append('x').append(format.height).append('@')
+                        .append(format.framerate.min).append('-').append(format.framerate.max);
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    @Nullable
+    private static CameraIndex parse(String serialized, String cameraNames) {
+        List<Camera> cameras = new ArrayList<>();
+        try {
+            for (String line : serialized.split("\n")) {
+                if (line.isEmpty())
+                    continue;
+                String[] parts = line.split("\t", -1);
+                List<CaptureFormat> formats = new ArrayList<>();
+                for (String format : parts[2].split(",")) {
+                    if (format.isEmpty())
+                        continue;
+                    int x = format.indexOf('x');
+                    int at = format.indexOf('@');
+                    int dash = format.indexOf('-', at);
+                    formats.add(new CaptureFormat(
+                            Integer.parseInt(format.substring(0, x)),
+                            Integer.parseInt(format.substring(x + 1, at)),
+                            Integer.parseInt(format.substring(at + 1, dash)),
+                            Integer.parseInt(format.substring(dash + 1))));
+                }
+                cameras.add(new Camera(parts[0], "1".equals(parts[1]), formats));
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            Log.w(TAG, "Ignoring corrupt camera index", e);
+            return null;
+        }
+        return cameras.isEmpty() ? null : new CameraIndex(cameras, cameraNames);
+    }
+
+    private static String join(String[] names) {
+        StringBuilder out = new StringBuilder();
+        for (String name : names)
+            out.append(name).append('\n');
+        return out.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the camera only while something needs frames. Viewers, MJPEG streams and the preview hold
+ * the camera with {@link #acquire()} and {@link #release()}, one-off requests like snapshots
+ * {@link #touch()} it. The camera stops once nothing holds it and nothing touched it for the
+ * idle timeout.
+ * <p>
+ * The capturer stays initialized while stopped, so a warm start only reopens the camera
+ * session. Time from start to first frame is recorded and logged when it exceeds
+ * {@link #START_BUDGET_MS}. Add this as a sink of the video track to measure it.
+ */
+public class CaptureScheduler implements VideoSink {
+    private static final String TAG = "CaptureScheduler";
+
+    // A cold snapshot should still be answered within this.
+    public static final long START_BUDGET_MS = 1500;
+
+    public interface Camera {
+        /** Called from the scheduler thread. */
+        void startCapture();
+
+        /** Called from the scheduler thread, may block until the camera is closed. */
+        void stopCapture();
+
+        /** Called from the scheduler thread when the format changed while capturing. */
+        void changeCaptureFormat();
+
+        /** Called from the capture thread with the first frame after each start. */
+        void onFirstFrame();
+    }
+
+    private final Camera camera;
+    private final long idleTimeoutMs;
+    private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "CaptureScheduler"));
+
+    // Only touched from the scheduler thread.
+    private int holders;
+    private long lastDemandAtMs;
+    private boolean capturing;
+    private ScheduledFuture<?> idleCheck;
+
+    // Nonzero while waiting for the first frame after a start.
+    private final AtomicLong startedAtNs = new AtomicLong();
+
+    public CaptureScheduler(Camera camera, long idleTimeoutMs) {
+        this.camera = camera;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /** Keeps the camera running until the matching {@link #release()}. */
+    public void acquire() {
+        run(() -> {
+            holders++;
+            start();
+        });
+    }
+
+    public void release() {
+        run(() -> {
+            holders--;
+            lastDemandAtMs = SystemClock.elapsedRealtime();
+            scheduleIdleCheck();
+        });
+    }
+
+    /** Starts the camera if needed and keeps it running for at least the idle timeout. */
+    public void touch() {
+        run(() -> {
+            lastDemandAtMs = SystemClock.elapsedRealtime();
+            start();
+            scheduleIdleCheck();
+        });
+    }
+
+    /**
+     * Applies a new capture format. A running camera switches its session, a stopped one picks
+     * the format up on its next start.
+     */
+    public void changeCaptureFormat() {
+        run(() -> {
+            if (capturing)
+                camera.changeCaptureFormat();
+        });
+    }
+
+    /** Stops scheduling, waiting briefly for a start or stop that is in progress. */
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        long started = startedAtNs.getAndSet(0);
+        if (started == 0)
+            return;
+
+        camera.onFirstFrame();
+        long latencyNs = System.nanoTime() - started;
+        Metrics.CAPTURE_START.observeNanos(latencyNs);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNs);
+        if (latencyMs > START_BUDGET_MS)
+            Log.w(TAG, "First frame took " + latencyMs + " ms, over the " + START_BUDGET_MS + " ms budget");
+        else
+            Log.d(TAG, "First frame after " + latencyMs + " ms");
+    }
+
+    private void start() {
+        if (capturing)
+            return;
+        Log.i(TAG, "Starting capture");
+        capturing = true;
+        startedAtNs.set(System.nanoTime());
+        camera.startCapture();
+    }
+
+    private void scheduleIdleCheck() {
+        // A pending check reschedules itself for the remaining time, touches don't need a new one.
+        if (idleCheck == null)
+            idleCheck = executor.schedule(this::checkIdle, idleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkIdle() {
+        idleCheck = null;
+        if (!capturing || holders > 0)
+            return;
+
+        long idleMs = SystemClock.elapsedRealtime() - lastDemandAtMs;
+        if (idleMs < idleTimeoutMs) {
+            idleCheck = executor.schedule(this::checkIdle, idleTimeoutMs - idleMs, TimeUnit.MILLISECONDS);
+            return;
+        }
+        Log.i(TAG, "Nothing used the camera for " + idleMs + " ms, stopping capture");
+        capturing = false;
+        startedAtNs.set(0);
+        camera.stopCapture();
+    }
+
+    private void run(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down, the service stops the camera itself.
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+/**
+ * Hands every captured frame to a sink before the video source adapts it. Sinks on the video
+ * track only see frames after {@link org.webrtc.VideoSource#adaptOutputFormat} scaled and dropped
+ * them, this sink gets them at full capture size and framerate.
+ */
+public class CaptureTap implements CapturerObserver {
+    private final CapturerObserver observer;
+    private final VideoSink sink;
+
+    public CaptureTap(CapturerObserver observer, VideoSink sink) {
+        this.observer = observer;
+        this.sink = sink;
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        observer.onCapturerStarted(success);
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        observer.onCapturerStopped();
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        sink.onFrame(frame);
+        observer.onFrameCaptured(frame);
+    }
+}
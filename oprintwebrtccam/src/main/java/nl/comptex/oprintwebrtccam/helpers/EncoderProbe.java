@@ -0,0 +1,340 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.EncodedImage;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast each hardware encoder really is on this phone by feeding it synthetic I420
+ * frames at the configured resolution and framerate. Results are stored per device build, codec,
+ * resolution and framerate, so a configuration is only probed once.
+ * <p>
+ * Software encoders are native only in this WebRTC version and can't be driven from Java, they
+ * are recorded without measurements.
+ */
+public class EncoderProbe {
+    private static final String TAG = "EncoderProbe";
+    private static final String PREFERENCES_NAME = "encoder_probe";
+
+    private static final long DURATION_MS = 2000;
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+    // Extra columns of the synthetic image, shifting the window through them gives motion.
+    private static final int PAN = 64;
+
+    private final SharedPreferences results;
+    private final BaseVideoEncoderFactory factory;
+
+    public EncoderProbe(Context context, BaseVideoEncoderFactory factory) {
+        this.results = getPreferences(context);
+        this.factory = factory;
+    }
+
+    public static class Result {
+        public final String codec;
+        public final int width;
+        public final int height;
+        public final int framerate;
+        public final boolean hardware;
+        public final int framesIn;
+        public final int framesOut;
+        public final double encodeTimeMs;
+        public final int bitrateBps;
+        public final int keyframeBytes;
+        public final int deltaFrameBytes;
+
+        Result(String codec, int width, int height, int framerate, boolean hardware, int framesIn, int framesOut,
+               double encodeTimeMs, int bitrateBps, int keyframeBytes, int deltaFrameBytes) {
+            this.codec = codec;
+            this.width = width;
+            this.height = height;
+            this.framerate = framerate;
+            this.hardware = hardware;
+            this.framesIn = framesIn;
+            this.framesOut = framesOut;
+            this.encodeTimeMs = encodeTimeMs;
+            this.bitrateBps = bitrateBps;
+            this.keyframeBytes = keyframeBytes;
+            this.deltaFrameBytes = deltaFrameBytes;
+        }
+
+        /**
+         * Whether the hardware encoder produced nearly every frame, without queueing up more than
+         * a couple of frame intervals.
+         */
+        public boolean keepsUp() {
+            return hardware && framesIn > 0 && framesOut >= framesIn * 0.9
+                    && encodeTimeMs <= 2000.0 / framerate;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("codec", codec);
+            json.put("width", width);
+            json.put("height", height);
+            json.put("framerate", framerate);
+            json.put("hardware", hardware);
+            json.put("framesIn", framesIn);
+            json.put("framesOut", framesOut);
+            json.put("encodeTimeMs", encodeTimeMs);
+            json.put("bitrateBps", bitrateBps);
+            json.put("keyframeBytes", keyframeBytes);
+            json.put("deltaFrameBytes", deltaFrameBytes);
+            return json;
+        }
+
+        static Result fromJson(JSONObject json) throws JSONException {
+            return new Result(json.getString("codec"), json.getInt("width"), json.getInt("height"),
+                    json.getInt("framerate"), json.getBoolean("hardware"), json.getInt("framesIn"),
+                    json.getInt("framesOut"), json.getDouble("encodeTimeMs"), json.getInt("bitrateBps"),
+                    json.getInt("keyframeBytes"), json.getInt("deltaFrameBytes"));
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            if (!hardware)
+                return String.format(Locale.US, "%s %dx%d@%d: software, not probed", codec, width, height, framerate);
+            return String.format(Locale.US, "%s %dx%d@%d: %d/%d frames, %.1f ms, %d kbps, keyframe %d B, delta %d B%s",
+                    codec, width, height, framerate, framesOut, framesIn, encodeTimeMs, bitrateBps / 1000,
+                    keyframeBytes, deltaFrameBytes, keepsUp() ? "" : ", can't keep up");
+        }
+    }
+
+    /**
+     * Returns the results for every supported codec at this configuration, probing the ones that
+     * aren't stored yet. Blocks for a couple of seconds per probed codec.
+     */
+    public List<Result> probe(int width, int height, int framerate, int bitrateBps) {
+        List<Result> probed = new ArrayList<>();
+        for (VideoCodecInfo info : getCodecs()) {
+            String key = getKey(info.name, width, height, framerate);
+            Result result = load(results, key);
+            if (result == null) {
+                result = run(info, width, height, framerate, bitrateBps);
+                // Cut short, the numbers mean nothing.
+                if (Thread.currentThread().isInterrupted())
+                    break;
+                Log.i(TAG, "Probed " + result);
+                try {
+                    results.edit().putString(key, result.toJson().toString()).apply();
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+            probed.add(result);
+        }
+        return probed;
+    }
+
+    /** Whether every supported codec already has a result for this configuration. */
+    public boolean isProbed(int width, int height, int framerate) {
+        for (VideoCodecInfo info : getCodecs()) {
+            if (!results.contains(getKey(info.name, width, height, framerate)))
+                return false;
+        }
+        return true;
+    }
+
+    /** The codec with the fastest hardware encoder that keeps up, or null if none does. */
+    @Nullable
+    public static Result pickCodec(List<Result> results) {
+        Result best = null;
+        for (Result result : results) {
+            if (result.keepsUp() && (best == null || result.encodeTimeMs < best.encodeTimeMs))
+                best = result;
+        }
+        return best;
+    }
+
+    /**
+     * The largest of the given resolutions ({@code WxH}) a stored result shows a hardware
+     * encoder keeping up with at this framerate, or null if nothing was probed yet.
+     */
+    @Nullable
+    public static String pickResolution(Context context, List<String> resolutions, int framerate) {
+        String best = null;
+        int bestArea = 0;
+        SharedPreferences preferences = getPreferences(context);
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(Build.FINGERPRINT + "|"))
+                continue;
+            Result result = load(preferences, entry.getKey());
+            if (result == null || result.framerate != framerate || !result.keepsUp())
+                continue;
+            String resolution = result.width + "x" + result.height;
+            if (resolutions.contains(resolution) && result.width * result.height > bestArea) {
+                best = resolution;
+                bestArea = result.width * result.height;
+            }
+        }
+        return best;
+    }
+
+    private List<VideoCodecInfo> getCodecs() {
+        // One probe per codec, profiles of a codec share the encoder.
+        List<VideoCodecInfo> codecs = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (VideoCodecInfo info : factory.getSupportedCodecs()) {
+            if (!names.contains(info.name)) {
+                names.add(info.name);
+                codecs.add(info);
+            }
+        }
+        return codecs;
+    }
+
+    private Result run(VideoCodecInfo info, int width, int height, int framerate, int bitrateBps) {
+        VideoEncoder encoder = factory.createHardwareEncoder(info);
+        if (encoder == null)
+            return new Result(info.name, width, height, framerate, false, 0, 0, 0, 0, 0, 0);
+        factory.setProbing(true);
+        try {
+            return run(encoder, info, width, height, framerate, bitrateBps);
+        } finally {
+            factory.setProbing(false);
+        }
+    }
+
+    private Result run(VideoEncoder encoder, VideoCodecInfo info, int width, int height, int framerate, int bitrateBps) {
+
+        int frames = (int) (DURATION_MS * framerate / 1000);
+        long[] submittedAtMs = new long[frames];
+        long[] stats = new long[5]; // frames out, latency sum, bytes, keyframe bytes, keyframes
+        CountDownLatch drained = new CountDownLatch(frames);
+
+        VideoEncoder.Settings settings = new VideoEncoder.Settings(Runtime.getRuntime().availableProcessors(),
+                width, height, bitrateBps / 1000, framerate, 1, false, new VideoEncoder.Capabilities(false));
+        VideoCodecStatus status = encoder.initEncode(settings, (frame, encodeInfo) -> {
+            int index = (int) (frame.captureTimeNs / 1000000);
+            synchronized (stats) {
+                stats[0]++;
+                if (index >= 0 && index < frames)
+                    stats[1] += SystemClock.elapsedRealtime() - submittedAtMs[index];
+                stats[2] += frame.buffer.remaining();
+                if (frame.frameType == EncodedImage.FrameType.VideoFrameKey) {
+                    stats[3] += frame.buffer.remaining();
+                    stats[4]++;
+                }
+            }
+            drained.countDown();
+        });
+        if (status != VideoCodecStatus.OK) {
+            Log.w(TAG, info.name + " encoder failed to initialize: " + status);
+            encoder.release();
+            return new Result(info.name, width, height, framerate, true, frames, 0, 0, 0, 0, 0);
+        }
+
+        byte[] image = createImage(width + PAN, height);
+        JavaI420Buffer buffer = JavaI420Buffer.allocate(width, height);
+        VideoEncoder.EncodeInfo keyframe = new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[]{EncodedImage.FrameType.VideoFrameKey});
+        VideoEncoder.EncodeInfo delta = new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[]{EncodedImage.FrameType.VideoFrameDelta});
+        long intervalMs = 1000 / framerate;
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            for (int i = 0; i < frames; i++) {
+                fill(buffer, image, width + PAN, i % PAN);
+                // The frame index travels through the encoder as the capture timestamp.
+                VideoFrame frame = new VideoFrame(buffer, 0, i * 1000000L);
+                buffer.retain();
+                submittedAtMs[i] = SystemClock.elapsedRealtime();
+                encoder.encode(frame, i == 0 || i == frames / 2 ? keyframe : delta);
+                frame.release();
+
+                long sleepMs = startMs + (i + 1) * intervalMs - SystemClock.elapsedRealtime();
+                if (sleepMs > 0)
+                    Thread.sleep(sleepMs);
+            }
+            drained.await(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            encoder.release();
+            buffer.release();
+        }
+
+        synchronized (stats) {
+            int out = (int) stats[0];
+            long deltaFrames = out - stats[4];
+            return new Result(info.name, width, height, framerate, true, frames, out,
+                    out > 0 ? (double) stats[1] / out : 0,
+                    (int) (stats[2] * 8 * 1000 / Math.max(1, SystemClock.elapsedRealtime() - startMs)),
+                    stats[4] > 0 ? (int) (stats[3] / stats[4]) : 0,
+                    deltaFrames > 0 ? (int) ((stats[2] - stats[3]) / deltaFrames) : 0);
+        }
+    }
+
+    /** Gradient with noise, so the encoder can't get away with flat blocks. */
+    private static byte[] createImage(int width, int height) {
+        byte[] image = new byte[width * height];
+        int seed = 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                seed = seed * 1103515245 + 12345;
+                image[y * width + x] = (byte) (((x + y) >> 2) + ((seed >> 16) & 0x1F));
+            }
+        }
+        return image;
+    }
+
+    private static void fill(JavaI420Buffer buffer, byte[] image, int imageWidth, int offset) {
+        ByteBuffer dataY = buffer.getDataY();
+        for (int y = 0; y < buffer.getHeight(); y++) {
+            dataY.position(y * buffer.getStrideY());
+            dataY.put(image, y * imageWidth + offset, buffer.getWidth());
+        }
+        dataY.rewind();
+        // Grey chroma, only luma moves.
+        fillPlane(buffer.getDataU());
+        fillPlane(buffer.getDataV());
+    }
+
+    private static void fillPlane(ByteBuffer plane) {
+        while (plane.hasRemaining())
+            plane.put((byte) 128);
+        plane.rewind();
+    }
+
+    @Nullable
+    private static Result load(SharedPreferences preferences, String key) {
+        String json = preferences.getString(key, null);
+        if (json == null)
+            return null;
+        try {
+            return Result.fromJson(new JSONObject(json));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String getKey(String codec, int width, int height, int framerate) {
+        // The fingerprint changes with every OS update, which can bring new encoder firmware.
+        return Build.FINGERPRINT + "|" + codec + "|" + width + "x" + height + "@" + framerate;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,57 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import org.webrtc.PeerConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Builds the ICE server list for the configured ICE mode. */
+public class IceServers {
+    public static final String MODE_PUBLIC_STUN = "stun";
+    public static final String MODE_LAN = "lan";
+    public static final String MODE_CUSTOM = "custom";
+
+    private static final String PUBLIC_STUN_URL = "stun:stun.l.google.com:19302";
+
+    public static List<PeerConnection.IceServer> create(String mode, String customServers) {
+        List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+        switch (mode) {
+            case MODE_LAN:
+                // No servers at all, only host candidates are gathered.
+                break;
+            case MODE_CUSTOM:
+                iceServers.addAll(parse(customServers));
+                break;
+            case MODE_PUBLIC_STUN:
+            default:
+                iceServers.add(PeerConnection.IceServer.builder(PUBLIC_STUN_URL).createIceServer());
+                break;
+        }
+        return iceServers;
+    }
+
+    /**
+     * Parses one server per line as {@code url [username credential]}, for example
+     * {@code turn:192.168.1.2:3478 octo secret}. Blank lines and lines starting with # are skipped.
+     */
+    public static List<PeerConnection.IceServer> parse(String servers) {
+        List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+        if (servers == null)
+            return iceServers;
+
+        for (String line : servers.split("[\r\n]+")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] parts = line.split("\\s+");
+            PeerConnection.IceServer.Builder builder = PeerConnection.IceServer.builder(parts[0]);
+            if (parts.length >= 3) {
+                builder.setUsername(parts[1]);
+                builder.setPassword(parts[2]);
+            }
+            iceServers.add(builder.createIceServer());
+        }
+        return iceServers;
+    }
+}
@@ -0,0 +1,174 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters and histograms, rendered in the Prometheus text format on /metrics.
+ * <p>
+ * Recording only touches preallocated atomics, so it is lock-free and allocation-free and can be
+ * used from the capture thread.
+ */
+public class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Upper bounds in seconds, chosen around a 33 ms frame interval.
+    private static final double[] LATENCY_BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    public static final String[] ROUTES = {
+            "/webcam", "/webcam/candidates", "/snapshot", "/stream", "/viewers", "/config", "/metrics", "/timelapse", "other"};
+
+    public static final Counter FRAMES_DELIVERED = new Counter();
+    public static final Histogram SNAPSHOT_CONVERSION = new Histogram(LATENCY_BUCKETS);
+    public static final Histogram SNAPSHOT_ENCODE = new Histogram(LATENCY_BUCKETS);
+    public static final Histogram CAPTURE_START = new Histogram(LATENCY_BUCKETS);
+
+    public static final Counter HTTP_REJECTED_CONNECTION = new Counter();
+    public static final Counter HTTP_REJECTED_LANE = new Counter();
+    public static final Counter HTTP_REJECTED_CLIENT = new Counter();
+
+    private static final Counter[] HTTP_REQUESTS = new Counter[ROUTES.length];
+    private static final Histogram[] HTTP_LATENCY = new Histogram[ROUTES.length];
+
+    static {
+        for (int i = 0; i < ROUTES.length; i++) {
+            HTTP_REQUESTS[i] = new Counter();
+            HTTP_LATENCY[i] = new Histogram(LATENCY_BUCKETS);
+        }
+    }
+
+    private static final AtomicLong captureStartedAtMs = new AtomicLong();
+    private static final AtomicLong captureStartedAtNanoTime = new AtomicLong();
+
+    public static int getRouteIndex(String uri) {
+        // All time-lapse actions share one route to keep the label set small.
+        if (uri.startsWith("/timelapse/"))
+            uri = "/timelapse";
+        for (int i = 0; i < ROUTES.length - 1; i++) {
+            if (ROUTES[i].equals(uri))
+                return i;
+        }
+        return ROUTES.length - 1;
+    }
+
+    public static void recordRequest(int routeIndex, long durationNs) {
+        HTTP_REQUESTS[routeIndex].increment();
+        HTTP_LATENCY[routeIndex].observeNanos(durationNs);
+    }
+
+    public static void markCaptureStarted() {
+        captureStartedAtMs.set(System.currentTimeMillis());
+        captureStartedAtNanoTime.set(System.nanoTime());
+    }
+
+    public static void markCaptureStopped() {
+        captureStartedAtMs.set(0);
+    }
+
+    /** Appends the process wide metrics. */
+    public static void render(StringBuilder out) {
+        writeHeader(out, "octocam_frames_delivered_total", "counter", "Frames delivered to the snapshot sink");
+        writeSample(out, "octocam_frames_delivered_total", null, FRAMES_DELIVERED.get());
+
+        writeHeader(out, "octocam_snapshot_conversion_seconds", "histogram", "Time to scale and convert a frame to NV21");
+        SNAPSHOT_CONVERSION.render(out, "octocam_snapshot_conversion_seconds", null);
+
+        writeHeader(out, "octocam_snapshot_encode_seconds", "histogram", "Time to JPEG encode a snapshot");
+        SNAPSHOT_ENCODE.render(out, "octocam_snapshot_encode_seconds", null);
+
+        writeHeader(out, "octocam_capture_start_seconds", "histogram", "Time from starting the camera to its first frame");
+        CAPTURE_START.render(out, "octocam_capture_start_seconds", null);
+
+        writeHeader(out, "octocam_http_requests_total", "counter", "HTTP requests per route");
+        for (int i = 0; i < ROUTES.length; i++)
+            writeSample(out, "octocam_http_requests_total", "route=\"" + ROUTES[i] + "\"", HTTP_REQUESTS[i].get());
+
+        writeHeader(out, "octocam_http_rejected_total", "counter", "Requests answered with 503 because of a limit");
+        writeSample(out, "octocam_http_rejected_total", "reason=\"connections\"", HTTP_REJECTED_CONNECTION.get());
+        writeSample(out, "octocam_http_rejected_total", "reason=\"lane\"", HTTP_REJECTED_LANE.get());
+        writeSample(out, "octocam_http_rejected_total", "reason=\"client\"", HTTP_REJECTED_CLIENT.get());
+
+        writeHeader(out, "octocam_http_request_duration_seconds", "histogram", "Time to produce a response per route");
+        for (int i = 0; i < ROUTES.length; i++)
+            HTTP_LATENCY[i].render(out, "octocam_http_request_duration_seconds", "route=\"" + ROUTES[i] + "\"");
+
+        long startedAtMs = captureStartedAtMs.get();
+        if (startedAtMs != 0) {
+            writeHeader(out, "octocam_capture_start_time_seconds", "gauge", "Unix time at which the capture started");
+            writeSample(out, "octocam_capture_start_time_seconds", null, startedAtMs / 1000.0);
+            writeHeader(out, "octocam_capture_uptime_seconds", "gauge", "Seconds since the capture started");
+            writeSample(out, "octocam_capture_uptime_seconds", null, (System.nanoTime() - captureStartedAtNanoTime.get()) / 1e9);
+        }
+    }
+
+    public static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /** Writes a single sample, {@code labels} is the part between the braces or null. */
+    public static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null)
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (Double.isNaN(value))
+            out.append("NaN");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(String.format(Locale.US, "%.6f", value));
+        out.append('\n');
+    }
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static class Histogram {
+        private final double[] bounds;
+        private final long[] boundsNs;
+        // One count per bucket plus the +Inf bucket, not cumulative.
+        private final AtomicLongArray counts;
+        private final AtomicLong sumNs = new AtomicLong();
+
+        Histogram(double[] boundsSeconds) {
+            bounds = boundsSeconds;
+            boundsNs = new long[boundsSeconds.length];
+            for (int i = 0; i < boundsSeconds.length; i++)
+                boundsNs[i] = (long) (boundsSeconds[i] * 1e9);
+            counts = new AtomicLongArray(boundsSeconds.length + 1);
+        }
+
+        public void observeNanos(long durationNs) {
+            int bucket = 0;
+            while (bucket < boundsNs.length && durationNs > boundsNs[bucket])
+                bucket++;
+            counts.incrementAndGet(bucket);
+            sumNs.addAndGet(durationNs);
+        }
+
+        void render(StringBuilder out, String name, String labels) {
+            String prefix = labels == null ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts.get(i);
+                writeSample(out, name + "_bucket", prefix + "le=\"" + bounds[i] + "\"", cumulative);
+            }
+            cumulative += counts.get(bounds.length);
+            writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            writeSample(out, name + "_sum", labels, sumNs.get() / 1e9);
+            writeSample(out, name + "_count", labels, cumulative);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of a {@code multipart/x-mixed-replace} response for a single MJPEG client.
+ * <p>
+ * Only the most recent frame is kept: while the socket is still busy sending an earlier frame,
+ * newer frames replace each other instead of piling up, so slow clients just get fewer frames.
+ */
+public class MjpegStream extends InputStream implements SnapshotSink.StreamListener {
+    public static final String BOUNDARY = "OctoCamFrame";
+    public static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
+    private static final byte[] PART_END = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final SnapshotSink sink;
+    private final Object lock = new Object();
+    private byte[] nextFrame;
+    private boolean closed;
+
+    // The part currently being written, only touched from the reading thread.
+    private byte[] header;
+    private byte[] frame;
+    private int position;
+    private int droppedFrames;
+
+    public MjpegStream(SnapshotSink sink, SnapshotOptions options, int maxFps) {
+        this.sink = sink;
+        sink.addStreamListener(this, options, maxFps);
+    }
+
+    @Override
+    public void onStreamFrame(byte[] image, long timestampNs) {
+        synchronized (lock) {
+            if (nextFrame != null)
+                droppedFrames++;
+            nextFrame = image;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onStreamClosed() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    public int getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (frame == null || position == partLength()) {
+            if (!takeNextFrame())
+                return -1;
+        }
+
+        int count = 0;
+        while (count < len && position < partLength()) {
+            byte[] source;
+            int sourceOffset;
+            if (position < header.length) {
+                source = header;
+                sourceOffset = position;
+            } else if (position < header.length + frame.length) {
+                source = frame;
+                sourceOffset = position - header.length;
+            } else {
+                source = PART_END;
+                sourceOffset = position - header.length - frame.length;
+            }
+            int chunk = Math.min(len - count, source.length - sourceOffset);
+            System.arraycopy(source, sourceOffset, b, off + count, chunk);
+            count += chunk;
+            position += chunk;
+        }
+        return count;
+    }
+
+    private int partLength() {
+        return header.length + frame.length + PART_END.length;
+    }
+
+    private boolean takeNextFrame() throws IOException {
+        synchronized (lock) {
+            while (nextFrame == null && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a frame", e);
+                }
+            }
+            if (closed)
+                return false;
+            frame = nextFrame;
+            nextFrame = null;
+        }
+
+        header = ("--" + BOUNDARY + "\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Length: " + frame.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        sink.removeStreamListener(this);
+        onStreamClosed();
+    }
+}
@@ -0,0 +1,189 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+
+/**
+ * Wraps a hardware encoder and watches it for stalls, falling behind and repeated errors. Once
+ * it is unhealthy, {@link #encode} returns {@link VideoCodecStatus#FALLBACK_SOFTWARE}, which makes
+ * the surrounding {@link org.webrtc.VideoEncoderFallback} switch to the software encoder for
+ * the rest of the session.
+ * <p>
+ * A stalled MediaCodec usually doesn't fail, it just stops producing output while encode()
+ * keeps accepting or dropping frames, so the output side is what is monitored.
+ */
+public class MonitoredVideoEncoder implements VideoEncoder {
+    private static final String TAG = "MonitoredVideoEncoder";
+
+    // No output for this long while frames keep coming in counts as a stall.
+    private static final long STALL_TIMEOUT_MS = 3000;
+    // Average latency from encode() to output above this, sustained for LATE_WINDOW_MS.
+    private static final long MAX_LATENCY_MS = 500;
+    private static final long LATE_WINDOW_MS = 10000;
+    private static final int MAX_CONSECUTIVE_ERRORS = 5;
+    private static final int PENDING_SIZE = 64;
+
+    public interface Listener {
+        /**
+         * Called from the encoder thread when the encoder looks unhealthy. Returning false
+         * excuses it, monitoring then starts over instead of giving the encoder up.
+         */
+        boolean onEncoderUnhealthy(String codecName, String reason);
+    }
+
+    private final VideoEncoder encoder;
+    private final String codecName;
+    private final Listener listener;
+
+    // Frames handed to the encoder, shared with the output callback and guarded by pending.
+    private final Object pending = new Object();
+    private final long[] pendingTimestampsNs = new long[PENDING_SIZE];
+    private final long[] pendingSubmittedAtMs = new long[PENDING_SIZE];
+    private int pendingIndex;
+    private long latencySumMs;
+    private int latencyCount;
+    private volatile long lastOutputAtMs;
+
+    // Only touched from the encoder thread.
+    private long firstInputSinceOutputAtMs;
+    private long windowStartMs;
+    private int consecutiveErrors;
+    private String unhealthyReason;
+
+    public MonitoredVideoEncoder(VideoEncoder encoder, String codecName, Listener listener) {
+        this.encoder = encoder;
+        this.codecName = codecName;
+        this.listener = listener;
+    }
+
+    @Override
+    public long createNativeVideoEncoder() {
+        return encoder.createNativeVideoEncoder();
+    }
+
+    @Override
+    public boolean isHardwareEncoder() {
+        return encoder.isHardwareEncoder();
+    }
+
+    @Override
+    public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+        reset(SystemClock.elapsedRealtime());
+        return encoder.initEncode(settings, (frame, info) -> {
+            onOutput(frame);
+            encodeCallback.onEncodedFrame(frame, info);
+        });
+    }
+
+    private void reset(long now) {
+        lastOutputAtMs = now;
+        firstInputSinceOutputAtMs = 0;
+        windowStartMs = now;
+        consecutiveErrors = 0;
+        synchronized (pending) {
+            latencySumMs = 0;
+            latencyCount = 0;
+        }
+    }
+
+    private void onOutput(EncodedImage frame) {
+        long now = SystemClock.elapsedRealtime();
+        lastOutputAtMs = now;
+        synchronized (pending) {
+            for (int i = 0; i < PENDING_SIZE; i++) {
+                if (pendingTimestampsNs[i] == frame.captureTimeNs && pendingSubmittedAtMs[i] != 0) {
+                    latencySumMs += now - pendingSubmittedAtMs[i];
+                    latencyCount++;
+                    pendingSubmittedAtMs[i] = 0;
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public VideoCodecStatus release() {
+        return encoder.release();
+    }
+
+    @Override
+    public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+        if (unhealthyReason != null)
+            return VideoCodecStatus.FALLBACK_SOFTWARE;
+
+        long now = SystemClock.elapsedRealtime();
+        String reason = checkHealth(now);
+        if (reason != null) {
+            if (!listener.onEncoderUnhealthy(codecName, reason)) {
+                Log.d(TAG, codecName + " hardware encoder " + reason + ", excused");
+                reset(now);
+            } else {
+                unhealthyReason = reason;
+                Log.w(TAG, codecName + " hardware encoder " + reason + ", falling back to software");
+                return VideoCodecStatus.FALLBACK_SOFTWARE;
+            }
+        }
+
+        synchronized (pending) {
+            pendingTimestampsNs[pendingIndex] = frame.getTimestampNs();
+            pendingSubmittedAtMs[pendingIndex] = now;
+            pendingIndex = (pendingIndex + 1) % PENDING_SIZE;
+        }
+        if (firstInputSinceOutputAtMs == 0 || lastOutputAtMs > firstInputSinceOutputAtMs)
+            firstInputSinceOutputAtMs = now;
+
+        VideoCodecStatus status = encoder.encode(frame, info);
+        if (status == VideoCodecStatus.OK || status == VideoCodecStatus.NO_OUTPUT)
+            consecutiveErrors = 0;
+        else
+            consecutiveErrors++;
+        return status;
+    }
+
+    private String checkHealth(long now) {
+        if (consecutiveErrors >= MAX_CONSECUTIVE_ERRORS)
+            return "failed " + consecutiveErrors + " times in a row";
+
+        if (firstInputSinceOutputAtMs != 0 && lastOutputAtMs < firstInputSinceOutputAtMs
+                && now - firstInputSinceOutputAtMs > STALL_TIMEOUT_MS)
+            return "produced no output for " + (now - firstInputSinceOutputAtMs) + " ms";
+
+        if (now - windowStartMs >= LATE_WINDOW_MS) {
+            long average;
+            synchronized (pending) {
+                average = latencyCount > 0 ? latencySumMs / latencyCount : 0;
+                latencySumMs = 0;
+                latencyCount = 0;
+            }
+            windowStartMs = now;
+            if (average > MAX_LATENCY_MS)
+                return "fell behind with " + average + " ms average latency";
+        }
+        return null;
+    }
+
+    @Override
+    public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+        return encoder.setRateAllocation(allocation, framerate);
+    }
+
+    @Override
+    public VideoCodecStatus setRates(RateControlParameters rcParameters) {
+        return encoder.setRates(rcParameters);
+    }
+
+    @Override
+    public ScalingSettings getScalingSettings() {
+        return encoder.getScalingSettings();
+    }
+
+    @Override
+    public String getImplementationName() {
+        return encoder.getImplementationName();
+    }
+}
@@ -0,0 +1,120 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.util.Log;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import java.nio.ByteBuffer;
+
+import nl.comptex.framekernels.LumaStats;
+
+/**
+ * Detects whether anything moves in front of the camera by comparing a tiny luma thumbnail of
+ * frames taken at most {@code wakeLatencyMs} apart.
+ * <p>
+ * When nothing changed for {@code idleDelayMs} the listener is told to throttle, it is told to
+ * return to full rate on the first sample with motion. While throttled the output framerate
+ * should stay at or above {@link #getIdleFramerate()} so motion is still seen within the wake-up
+ * latency. The thumbnail luma goes into two reused arrays, but every sample still allocates the
+ * scaled buffer and its I420 readback, at most once per {@code wakeLatencyMs}.
+ */
+public class MotionDetector implements VideoSink {
+    private static final String TAG = "MotionDetector";
+
+    private static final int SAMPLE_WIDTH = 64;
+    private static final int SAMPLE_HEIGHT = 36;
+    // Luma difference below this is considered sensor noise.
+    private static final int PIXEL_THRESHOLD = 16;
+
+    private final Listener listener;
+    private final long wakeLatencyNs;
+    private final long idleDelayNs;
+    private final int changedPixelThreshold;
+
+    // Only touched from the capture thread.
+    private byte[] previous = new byte[SAMPLE_WIDTH * SAMPLE_HEIGHT];
+    private byte[] current = new byte[SAMPLE_WIDTH * SAMPLE_HEIGHT];
+    private boolean hasPrevious;
+    private long lastSampleNs;
+    private long lastMotionNs;
+    private volatile boolean idle;
+
+    /**
+     * @param thresholdPercent percentage of the thumbnail that has to change to count as motion.
+     */
+    public MotionDetector(Listener listener, int thresholdPercent, long idleDelayMs, long wakeLatencyMs) {
+        this.listener = listener;
+        this.wakeLatencyNs = wakeLatencyMs * 1_000_000;
+        this.idleDelayNs = idleDelayMs * 1_000_000;
+        this.changedPixelThreshold = Math.max(1, SAMPLE_WIDTH * SAMPLE_HEIGHT * thresholdPercent / 100);
+    }
+
+    /** The lowest framerate that still notices motion within the wake-up latency. */
+    public int getIdleFramerate() {
+        return (int) Math.max(1, Math.ceil(1e9 / wakeLatencyNs));
+    }
+
+    public boolean isIdle() {
+        return idle;
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        long now = System.nanoTime();
+        // Compare slightly more often than the latency, frames don't arrive exactly on time.
+        if (hasPrevious && now - lastSampleNs < wakeLatencyNs * 3 / 4)
+            return;
+        lastSampleNs = now;
+
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        VideoFrame.Buffer scaled = buffer.cropAndScale(0, 0, buffer.getWidth(), buffer.getHeight(), SAMPLE_WIDTH, SAMPLE_HEIGHT);
+        VideoFrame.I420Buffer i420 = scaled.toI420();
+        scaled.release();
+        copyLuma(i420.getDataY(), i420.getStrideY(), current);
+        i420.release();
+
+        if (!hasPrevious) {
+            hasPrevious = true;
+            lastMotionNs = now;
+            swap();
+            return;
+        }
+
+        int changed = LumaStats.countChanged(current, previous, current.length, PIXEL_THRESHOLD);
+        swap();
+
+        if (changed >= changedPixelThreshold) {
+            lastMotionNs = now;
+            if (idle) {
+                idle = false;
+                Log.i(TAG, "Motion detected (" + changed + " pixels changed), back to full rate");
+                listener.onMotionStateChanged(false);
+            }
+        } else if (!idle && now - lastMotionNs >= idleDelayNs) {
+            idle = true;
+            Log.i(TAG, "Scene static for " + idleDelayNs / 1_000_000_000 + " s, throttling");
+            listener.onMotionStateChanged(true);
+        }
+    }
+
+    private static void copyLuma(ByteBuffer dataY, int strideY, byte[] destination) {
+        int position = dataY.position();
+        for (int row = 0; row < SAMPLE_HEIGHT; row++) {
+            dataY.position(position + row * strideY);
+            dataY.get(destination, row * SAMPLE_WIDTH, SAMPLE_WIDTH);
+        }
+        dataY.position(position);
+    }
+
+    private void swap() {
+        byte[] temp = previous;
+        previous = current;
+        current = temp;
+    }
+
+    public interface Listener {
+        /** Called on the capture thread, should only post work elsewhere. */
+        void onMotionStateChanged(boolean idle);
+    }
+}
@@ -0,0 +1,101 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.webrtc.DefaultVideoDecoderFactory;
+import org.webrtc.EglBase;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SurfaceTextureHelper;
+
+import java.util.Collections;
+
+/**
+ * Owns the native WebRTC state that is expensive to create: the EGL context, the encoder and
+ * decoder factories, the {@link PeerConnectionFactory} and the capture
+ * {@link SurfaceTextureHelper}. Users {@link #acquire} and {@link #release} it, once nothing
+ * holds it for {@link #LINGER_MS} it is torn down. A service that is restarted in the same
+ * process within that time reuses everything instead of paying the native init again.
+ * <p>
+ * Tracks, sources and capturers still belong to their users and must be disposed by them before
+ * releasing.
+ */
+public class PeerConnectionFactoryHolder {
+    private static final String TAG = "PeerConnectionFactoryHolder";
+    private static final long LINGER_MS = 60000;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable teardown = PeerConnectionFactoryHolder::teardown;
+
+    private static boolean initialized;
+    private static int references;
+    private static EglBase eglBase;
+    private static BaseVideoEncoderFactory encoderFactory;
+    private static PeerConnectionFactory factory;
+    private static SurfaceTextureHelper surfaceTextureHelper;
+
+    /** @return true when the state was still alive and is reused. */
+    public static synchronized boolean acquire(Context context) {
+        handler.removeCallbacks(teardown);
+        references++;
+        if (factory != null)
+            return true;
+
+        if (!initialized) {
+            PeerConnectionFactory.initialize(PeerConnectionFactory.InitializationOptions
+                    .builder(context.getApplicationContext())
+                    .createInitializationOptions());
+            initialized = true;
+        }
+
+        eglBase = EglBase.create();
+        encoderFactory = new BaseVideoEncoderFactory(eglBase.getEglBaseContext(), Collections.emptySet());
+        factory = PeerConnectionFactory.builder()
+                .setVideoEncoderFactory(encoderFactory)
+                .setVideoDecoderFactory(new DefaultVideoDecoderFactory(eglBase.getEglBaseContext()))
+                .createPeerConnectionFactory();
+        surfaceTextureHelper = SurfaceTextureHelper.create("THREAD", eglBase.getEglBaseContext());
+        return false;
+    }
+
+    public static synchronized void release() {
+        if (references == 0) {
+            Log.w(TAG, "Released more often than acquired");
+            return;
+        }
+        if (--references == 0)
+            handler.postDelayed(teardown, LINGER_MS);
+    }
+
+    public static synchronized EglBase getEglBase() {
+        return eglBase;
+    }
+
+    public static synchronized BaseVideoEncoderFactory getEncoderFactory() {
+        return encoderFactory;
+    }
+
+    public static synchronized PeerConnectionFactory getFactory() {
+        return factory;
+    }
+
+    public static synchronized SurfaceTextureHelper getSurfaceTextureHelper() {
+        return surfaceTextureHelper;
+    }
+
+    private static synchronized void teardown() {
+        if (references > 0 || factory == null)
+            return;
+
+        Log.i(TAG, "Unused for " + LINGER_MS + " ms, releasing");
+        surfaceTextureHelper.dispose();
+        surfaceTextureHelper = null;
+        factory.dispose();
+        factory = null;
+        encoderFactory = null;
+        eglBase.release();
+        eglBase = null;
+    }
+}
@@ -0,0 +1,108 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission control for the web server. Requests are split in a signaling and a media lane with
+ * their own number of permits, so snapshot and stream traffic can never use up the threads that
+ * offers and candidates need, see {@link WebServer}. On top of that every client IP may only have
+ * a few requests in flight. Nothing ever waits for a permit, requests that don't get one are
+ * rejected right away.
+ */
+public class RequestLimiter {
+    public enum Lane {SIGNALING, MEDIA}
+
+    private final Semaphore signaling;
+    private final Semaphore media;
+    private final int maxPerClient;
+    private final Map<String, Integer> clients = new HashMap<>();
+
+    public RequestLimiter(int signalingPermits, int mediaPermits, int maxPerClient) {
+        signaling = new Semaphore(signalingPermits);
+        media = new Semaphore(mediaPermits);
+        this.maxPerClient = maxPerClient;
+    }
+
+    public static Lane getLane(String uri) {
+        switch (uri) {
+            case "/snapshot":
+            case "/stream":
+            case "/timelapse/frame":
+            case "/timelapse/download":
+                return Lane.MEDIA;
+            default:
+                return Lane.SIGNALING;
+        }
+    }
+
+    /** @return the permit, or null when the lane or the client is at its limit. */
+    public Permit tryAcquire(Lane lane, String client) {
+        synchronized (clients) {
+            Integer count = clients.get(client);
+            if (count != null && count >= maxPerClient) {
+                Metrics.HTTP_REJECTED_CLIENT.increment();
+                return null;
+            }
+            clients.put(client, count == null ? 1 : count + 1);
+        }
+
+        Semaphore semaphore = lane == Lane.MEDIA ? media : signaling;
+        if (!semaphore.tryAcquire()) {
+            releaseClient(client);
+            Metrics.HTTP_REJECTED_LANE.increment();
+            return null;
+        }
+        return new Permit(semaphore, client);
+    }
+
+    private void releaseClient(String client) {
+        synchronized (clients) {
+            Integer count = clients.get(client);
+            if (count == null || count <= 1)
+                clients.remove(client);
+            else
+                clients.put(client, count - 1);
+        }
+    }
+
+    public class Permit {
+        private final Semaphore semaphore;
+        private final String client;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Semaphore semaphore, String client) {
+            this.semaphore = semaphore;
+            this.client = client;
+        }
+
+        public void release() {
+            if (!released.compareAndSet(false, true))
+                return;
+            semaphore.release();
+            releaseClient(client);
+        }
+
+        /**
+         * Keeps the permit until the response body is closed, which NanoHTTPD does once it is
+         * sent. Streams hold on to their permit for as long as the client watches.
+         */
+        public InputStream releaseOnClose(InputStream body) {
+            return new FilterInputStream(body) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+    }
+}
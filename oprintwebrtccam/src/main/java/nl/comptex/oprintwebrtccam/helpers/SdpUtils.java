@@ -0,0 +1,188 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small edits to session descriptions that the WebRTC API of this version doesn't offer.
+ */
+public class SdpUtils {
+
+    private SdpUtils() {
+    }
+
+    /**
+     * @return the name of the first codec of the first m-line of the given kind, which is the one
+     * in use after negotiation, or null when there is none.
+     */
+    public static String getCodec(String sdp, String kind) {
+        String[] lines = sdp.split("\r\n");
+        String payload = null;
+        for (String line : lines) {
+            if (payload == null) {
+                if (line.startsWith("m=" + kind + " ")) {
+                    String[] parts = line.split(" ");
+                    if (parts.length <= 3)
+                        return null;
+                    payload = parts[3];
+                }
+            } else if (line.startsWith("m=")) {
+                return null;
+            } else if (line.startsWith("a=rtpmap:" + payload + " ")) {
+                int slash = line.indexOf('/');
+                return line.substring(line.indexOf(' ') + 1, slash == -1 ? line.length() : slash).toUpperCase(Locale.US);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reorders the payload types of the first m-line of the given kind so codecs follow
+     * {@code codecNames}. The answer keeps the codec order of the offer, so this is how the
+     * answerer gets its preference negotiated. Payload types of other codecs (rtx, red, ulpfec
+     * and unranked codecs) keep their relative order after the ranked ones.
+     */
+    public static String preferCodecs(String sdp, String kind, List<String> codecNames) {
+        String[] lines = sdp.split("\r\n", -1);
+
+        int mLine = -1;
+        int sectionEnd = lines.length;
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].startsWith("m="))
+                continue;
+            if (mLine != -1) {
+                sectionEnd = i;
+                break;
+            }
+            if (lines[i].startsWith("m=" + kind + " "))
+                mLine = i;
+        }
+        if (mLine == -1)
+            return sdp;
+
+        Map<String, String> payloadCodecs = new HashMap<>();
+        for (int i = mLine + 1; i < sectionEnd; i++) {
+            if (!lines[i].startsWith("a=rtpmap:"))
+                continue;
+            int space = lines[i].indexOf(' ');
+            int slash = lines[i].indexOf('/', space);
+            if (space == -1 || slash == -1)
+                continue;
+            payloadCodecs.put(lines[i].substring("a=rtpmap:".length(), space),
+                    lines[i].substring(space + 1, slash).toUpperCase(Locale.US));
+        }
+
+        // m=<kind> <port> <proto> <payload types...>
+        String[] parts = lines[mLine].split(" ");
+        if (parts.length <= 3)
+            return sdp;
+
+        List<String> ordered = new ArrayList<>(parts.length - 3);
+        for (String name : codecNames) {
+            for (int i = 3; i < parts.length; i++) {
+                if (name.equalsIgnoreCase(payloadCodecs.get(parts[i])))
+                    ordered.add(parts[i]);
+            }
+        }
+        for (int i = 3; i < parts.length; i++) {
+            if (!ordered.contains(parts[i]))
+                ordered.add(parts[i]);
+        }
+
+        StringBuilder line = new StringBuilder(parts[0]).append(' ').append(parts[1]).append(' ').append(parts[2]);
+        for (String payload : ordered)
+            line.append(' ').append(payload);
+        lines[mLine] = line.toString();
+
+        StringBuilder result = new StringBuilder(sdp.length());
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0)
+                result.append("\r\n");
+            result.append(lines[i]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Sets format parameters on every payload type of the named codec in the first m-line of the
+     * given kind, replacing values already there. Payload types without an a=fmtp line get one.
+     * Parameters set on the offer configure our encoder, since the sender follows the parameters
+     * of the remote description.
+     */
+    public static String setFormatParameters(String sdp, String kind, String codecName, Map<String, String> parameters) {
+        List<String> lines = new ArrayList<>(Arrays.asList(sdp.split("\r\n", -1)));
+
+        int mLine = -1;
+        int sectionEnd = lines.size();
+        for (int i = 0; i < lines.size(); i++) {
+            if (!lines.get(i).startsWith("m="))
+                continue;
+            if (mLine != -1) {
+                sectionEnd = i;
+                break;
+            }
+            if (lines.get(i).startsWith("m=" + kind + " "))
+                mLine = i;
+        }
+        if (mLine == -1)
+            return sdp;
+
+        // Payload types of the codec, with the line to add an a=fmtp after when they have none.
+        Map<String, Integer> payloads = new LinkedHashMap<>();
+        for (int i = mLine + 1; i < sectionEnd; i++) {
+            String line = lines.get(i);
+            if (!line.startsWith("a=rtpmap:"))
+                continue;
+            int space = line.indexOf(' ');
+            int slash = line.indexOf('/', space);
+            if (space != -1 && slash != -1 && codecName.equalsIgnoreCase(line.substring(space + 1, slash)))
+                payloads.put(line.substring("a=rtpmap:".length(), space), i);
+        }
+
+        for (int i = mLine + 1; i < sectionEnd; i++) {
+            String line = lines.get(i);
+            if (!line.startsWith("a=fmtp:"))
+                continue;
+            int space = line.indexOf(' ');
+            if (space == -1 || payloads.remove(line.substring("a=fmtp:".length(), space)) == null)
+                continue;
+
+            Map<String, String> merged = new LinkedHashMap<>();
+            for (String parameter : line.substring(space + 1).split(";")) {
+                int equals = parameter.indexOf('=');
+                if (equals != -1)
+                    merged.put(parameter.substring(0, equals).trim(), parameter.substring(equals + 1).trim());
+            }
+            merged.putAll(parameters);
+            lines.set(i, line.substring(0, space + 1) + formatParameters(merged));
+        }
+
+        // Insert from the bottom so earlier indices stay valid.
+        List<Map.Entry<String, Integer>> missing = new ArrayList<>(payloads.entrySet());
+        for (int i = missing.size() - 1; i >= 0; i--)
+            lines.add(missing.get(i).getValue() + 1, "a=fmtp:" + missing.get(i).getKey() + " " + formatParameters(parameters));
+
+        StringBuilder result = new StringBuilder(sdp.length());
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0)
+                result.append("\r\n");
+            result.append(lines.get(i));
+        }
+        return result.toString();
+    }
+
+    private static String formatParameters(Map<String, String> parameters) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (out.length() > 0)
+                out.append(';');
+            out.append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import java.util.Locale;
+
+/** An encoded JPEG together with the frame it was taken from. */
+public class Snapshot {
+    public final byte[] image;
+    public final SnapshotOptions options;
+    /** Timestamp of the {@link org.webrtc.VideoFrame}, on the {@link System#nanoTime()} clock. */
+    public final long timestampNs;
+    /** Wall clock time at which the frame was captured. */
+    public final long capturedAtMs;
+
+    Snapshot(byte[] image, SnapshotOptions options, long timestampNs, long capturedAtMs) {
+        this.image = image;
+        this.options = options;
+        this.timestampNs = timestampNs;
+        this.capturedAtMs = capturedAtMs;
+    }
+
+    /** Strong validator, unique per frame and variant. */
+    public String getETag() {
+        return String.format(Locale.US, "\"%x-%x\"", timestampNs, options.hashCode());
+    }
+
+    public long getAgeMs() {
+        return System.currentTimeMillis() - capturedAtMs;
+    }
+}
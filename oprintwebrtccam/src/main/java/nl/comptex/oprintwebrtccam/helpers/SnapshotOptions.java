@@ -0,0 +1,79 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Requested size and JPEG quality of a snapshot. A width or height of 0 means "derive it from
+ * the other one", both 0 means the full frame. Snapshots are never scaled up.
+ */
+public class SnapshotOptions {
+    public static final int DEFAULT_QUALITY = 100;
+    public static final SnapshotOptions FULL_SIZE = new SnapshotOptions(0, 0, DEFAULT_QUALITY);
+
+    private final int width;
+    private final int height;
+    private final int quality;
+
+    public SnapshotOptions(int width, int height, int quality) {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Snapshot size must not be negative");
+        if (quality < 1 || quality > 100)
+            throw new IllegalArgumentException("Snapshot quality must be between 1 and 100");
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public boolean isFullSize() {
+        return width == 0 && height == 0;
+    }
+
+    /** Width to scale a frame of the given size to, rounded down to an even number. */
+    public int getScaledWidth(int frameWidth, int frameHeight) {
+        if (isFullSize())
+            return frameWidth;
+        return Math.max(2, (int) (frameWidth * getScale(frameWidth, frameHeight)) & ~1);
+    }
+
+    /** Height to scale a frame of the given size to, rounded down to an even number. */
+    public int getScaledHeight(int frameWidth, int frameHeight) {
+        if (isFullSize())
+            return frameHeight;
+        return Math.max(2, (int) (frameHeight * getScale(frameWidth, frameHeight)) & ~1);
+    }
+
+    // Fits the frame inside the requested box while keeping its aspect ratio.
+    private double getScale(int frameWidth, int frameHeight) {
+        double scale;
+        if (width == 0)
+            scale = (double) height / frameHeight;
+        else if (height == 0)
+            scale = (double) width / frameWidth;
+        else
+            scale = Math.min((double) width / frameWidth, (double) height / frameHeight);
+        return Math.min(scale, 1.0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SnapshotOptions)) return false;
+        SnapshotOptions that = (SnapshotOptions) o;
+        return width == that.width && height == that.height && quality == that.quality;
+    }
+
+    @Override
+    public int hashCode() {
+        return (width * 31 + height) * 31 + quality;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return width + "x" + height + "@" + quality;
+    }
+}
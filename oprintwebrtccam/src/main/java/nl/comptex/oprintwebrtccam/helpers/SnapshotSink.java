@@ -3,74 +3,367 @@ package nl.comptex.oprintwebrtccam.helpers;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
+import android.util.Log;
 
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
 import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nl.comptex.framekernels.Nv21Converter;
 
 public class SnapshotSink implements VideoSink {
     private static final String TAG = "SnapshotListener";
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
     private final Object lock = new Object();
-    private Boolean snapshotRequested = false;
-    private byte[] image;
+    private Map<SnapshotOptions, PendingSnapshot> pending = new HashMap<>();
+
+    // Variants already encoded from the frame with timestamp cachedTimestampNs, guarded by lock.
+    private final Map<SnapshotOptions, Snapshot> cache = new HashMap<>();
+    private long cachedTimestampNs = -1;
+    private volatile long latestTimestampNs = -1;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile RequestListener requestListener;
+
+    private final AtomicBoolean encoding = new AtomicBoolean(false);
+    private final ExecutorService worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(1), r -> new Thread(r, "SnapshotEncoder"));
+
+    // Only touched from the worker thread.
+    private final Nv21Converter converter = new Nv21Converter();
+    private final ByteArrayOutputStream jpegStream = new ByteArrayOutputStream();
 
     @Override
     public void onFrame(VideoFrame videoFrame) {
+        Metrics.FRAMES_DELIVERED.increment();
+        long timestampNs = videoFrame.getTimestampNs();
+        latestTimestampNs = timestampNs;
+        if (!encoding.compareAndSet(false, true))
+            return; // The worker is still busy with an earlier frame, drop this one.
+
+        // The worker only ever gets a detached map, requestSnapshot keeps adding to pending.
+        Map<SnapshotOptions, PendingSnapshot> requests;
         synchronized (lock) {
-            if (!snapshotRequested) {
-                return;
+            if (pending.isEmpty()) {
+                requests = Collections.emptyMap();
+            } else {
+                requests = pending;
+                pending = new HashMap<>();
             }
-            image = imageToByteArray(videoFrame.getBuffer().toI420(), videoFrame.getRotation());
-            snapshotRequested = false;
-            lock.notify();
+        }
+        if (requests.isEmpty() && !isStreamFrameDue(timestampNs)) {
+            encoding.set(false);
+            return;
+        }
+
+        videoFrame.retain();
+        try {
+            worker.execute(() -> encode(videoFrame, requests));
+        } catch (RejectedExecutionException e) {
+            videoFrame.release();
+            encoding.set(false);
+            for (PendingSnapshot request : requests.values())
+                request.fail(e);
         }
     }
 
-    public byte[] getSnapshot() {
-        synchronized (lock) {
-            snapshotRequested = true;
-            try {
-                lock.wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            return image;
+    private boolean isStreamFrameDue(long timestampNs) {
+        if (subscriptions.isEmpty())
+            return false;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.isDue(timestampNs))
+                return true;
         }
+        return false;
     }
 
-    public byte[] imageToByteArray(VideoFrame.I420Buffer buffer, int rotationDegrees) {
+    private void encode(VideoFrame videoFrame, Map<SnapshotOptions, PendingSnapshot> requests) {
+        long timestampNs = videoFrame.getTimestampNs();
+        // Frame timestamps are on the monotonic clock, Last-Modified needs wall clock time.
+        long capturedAtMs = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timestampNs);
+
+        List<Subscription> dueSubscriptions = new ArrayList<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.isDue(timestampNs)) {
+                subscription.lastFrameNs = timestampNs;
+                dueSubscriptions.add(subscription);
+            }
+        }
+
+        List<SnapshotOptions> options = new ArrayList<>(requests.keySet());
+        for (Subscription subscription : dueSubscriptions) {
+            if (!options.contains(subscription.options))
+                options.add(subscription.options);
+        }
+
+        List<VideoFrame.I420Buffer> buffers = new ArrayList<>(options.size());
+        long[] readbackNs = new long[options.size()];
+        try {
+            // Scale in the frame domain first so we never convert or encode pixels we throw away.
+            // Texture frames are read back on the capture thread, release the frame as soon as
+            // that is done so the camera can reuse the texture while we encode.
+            for (int i = 0; i < options.size(); i++) {
+                long start = System.nanoTime();
+                buffers.add(toScaledI420(videoFrame.getBuffer(), options.get(i)));
+                readbackNs[i] = System.nanoTime() - start;
+            }
+            videoFrame.release();
+            videoFrame = null;
+
+            for (int i = 0; i < options.size(); i++) {
+                SnapshotOptions option = options.get(i);
+                PendingSnapshot request = requests.get(option);
+                VideoFrame.I420Buffer buffer = buffers.get(i);
+                byte[] image;
+                try {
+                    long convertStart = System.nanoTime();
+                    byte[] nv21 = converter.convert(
+                            buffer.getDataY(), buffer.getStrideY(),
+                            buffer.getDataU(), buffer.getStrideU(),
+                            buffer.getDataV(), buffer.getStrideV(),
+                            buffer.getWidth(), buffer.getHeight());
+                    long encodeStart = System.nanoTime();
+                    Metrics.SNAPSHOT_CONVERSION.observeNanos(readbackNs[i] + encodeStart - convertStart);
+                    image = compressToJpeg(nv21, buffer.getWidth(), buffer.getHeight(), option.getQuality());
+                    Metrics.SNAPSHOT_ENCODE.observeNanos(System.nanoTime() - encodeStart);
+                } catch (RuntimeException e) {
+                    if (request != null)
+                        request.fail(e);
+                    continue;
+                }
+
+                Snapshot snapshot = new Snapshot(image, option, timestampNs, capturedAtMs);
+                cache(snapshot);
+                if (request != null)
+                    request.complete(snapshot);
+                // Every stream client gets the same bytes, the frame is encoded only once.
+                for (Subscription subscription : dueSubscriptions) {
+                    if (subscription.options.equals(option))
+                        subscription.listener.onStreamFrame(image, timestampNs);
+                }
+            }
+        } catch (RuntimeException e) {
+            for (PendingSnapshot request : requests.values())
+                request.fail(e);
+        } finally {
+            if (videoFrame != null)
+                videoFrame.release();
+            for (VideoFrame.I420Buffer buffer : buffers)
+                buffer.release();
+            encoding.set(false);
+        }
+    }
 
+    private static VideoFrame.I420Buffer toScaledI420(VideoFrame.Buffer buffer, SnapshotOptions options) {
         int width = buffer.getWidth();
         int height = buffer.getHeight();
-        int ySize = height * width;
-        int uvSize = ySize / 2;
-        ByteBuffer ib = ByteBuffer.allocate(ySize + ySize);
+        int scaledWidth = options.getScaledWidth(width, height);
+        int scaledHeight = options.getScaledHeight(width, height);
+        if (scaledWidth == width && scaledHeight == height)
+            return buffer.toI420();
 
-        ByteBuffer y = buffer.getDataY();
-        ByteBuffer u = buffer.getDataU();
-        ByteBuffer v = buffer.getDataV();
+        VideoFrame.Buffer scaled = buffer.cropAndScale(0, 0, width, height, scaledWidth, scaledHeight);
+        try {
+            return scaled.toI420();
+        } finally {
+            scaled.release();
+        }
+    }
 
-        ib.put(y);
+    private void cache(Snapshot snapshot) {
+        synchronized (lock) {
+            if (cachedTimestampNs != snapshot.timestampNs) {
+                cache.clear();
+                cachedTimestampNs = snapshot.timestampNs;
+            }
+            cache.put(snapshot.options, snapshot);
+        }
+    }
+
+    /**
+     * @return the most recently encoded variant when its frame is at most {@code maxAgeMs} old,
+     * even if newer frames arrived since, or null. Never waits for or touches the camera.
+     */
+    public Snapshot getCachedSnapshot(SnapshotOptions options, long maxAgeMs) {
+        Snapshot cached;
+        synchronized (lock) {
+            cached = cache.get(options);
+        }
+        if (cached == null || cached.getAgeMs() > maxAgeMs)
+            return null;
+        return cached;
+    }
+
+    /**
+     * @return the encoded variant of the newest frame the camera delivered, whatever its age, or
+     * null when that frame wasn't encoded with these options. Lets conditional requests be
+     * answered without encoding when nothing newer than the client's copy exists.
+     */
+    public Snapshot getLatestSnapshot(SnapshotOptions options) {
+        synchronized (lock) {
+            if (cachedTimestampNs != latestTimestampNs)
+                return null;
+            return cache.get(options);
+        }
+    }
 
-        ByteBuffer uv = ByteBuffer.allocate(uvSize);
-        for (int i = 0; i < height / 2; i++) {
-            for (int j = 0; j < width / 2; j++) {
-                uv.put(v.get(buffer.getStrideV() * i + j));
-                uv.put(u.get(buffer.getStrideU() * i + j));
+    /**
+     * Requests a JPEG of the next frame. All callers that arrive before that frame with the same
+     * options share the same future, so each variant is only converted and encoded once. When no
+     * newer frame arrived since a variant was encoded, the cached bytes are returned right away.
+     */
+    public Future<Snapshot> requestSnapshot(SnapshotOptions options) {
+        RequestListener listener = requestListener;
+        if (listener != null)
+            listener.onSnapshotRequested();
+
+        synchronized (lock) {
+            if (cachedTimestampNs == latestTimestampNs) {
+                Snapshot cached = cache.get(options);
+                if (cached != null) {
+                    PendingSnapshot done = new PendingSnapshot();
+                    done.complete(cached);
+                    return done;
+                }
             }
+
+            PendingSnapshot request = pending.get(options);
+            if (request == null) {
+                request = new PendingSnapshot();
+                pending.put(options, request);
+            }
+            return request;
+        }
+    }
+
+    /**
+     * Waits at most {@code timeoutMs} for the next frame to be encoded.
+     *
+     * @return the snapshot, or null when the encode failed or the wait was interrupted.
+     * @throws TimeoutException when no frame arrived in time, e.g. because the camera stalled.
+     */
+    public Snapshot getSnapshot(SnapshotOptions options, long timeoutMs) throws TimeoutException {
+        try {
+            return requestSnapshot(options).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Snapshot encoding failed", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+    }
 
-        uv.rewind();
-        ib.put(uv);
+    /**
+     * Registers a listener that receives an encoded frame at most {@code maxFps} times per
+     * second, or for every frame the worker can keep up with when {@code maxFps} is 0.
+     */
+    public void addStreamListener(StreamListener listener, SnapshotOptions options, int maxFps) {
+        subscriptions.add(new Subscription(listener, options, maxFps));
+    }
 
-        YuvImage yuvImage = new YuvImage(ib.array(), ImageFormat.NV21, width, height, null);
+    public void removeStreamListener(StreamListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener)
+                subscriptions.remove(subscription);
+        }
+    }
+
+    /** Called when something needs to know a frame is wanted, e.g. to start the camera. */
+    public void setRequestListener(RequestListener listener) {
+        requestListener = listener;
+    }
+
+    /**
+     * Tells the sink no frames will arrive until the camera starts again, so cached variants
+     * aren't served as the latest frame anymore.
+     */
+    public void onCaptureStopped() {
+        latestTimestampNs = -1;
+    }
+
+    public void dispose() {
+        worker.shutdownNow();
+        synchronized (lock) {
+            for (PendingSnapshot request : pending.values())
+                request.cancel(false);
+            pending.clear();
+            cache.clear();
+        }
+        for (Subscription subscription : subscriptions)
+            subscription.listener.onStreamClosed();
+        subscriptions.clear();
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-        byte[] imageBytes = out.toByteArray();
+    private byte[] compressToJpeg(byte[] nv21, int width, int height, int quality) {
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
 
-        return imageBytes;
+        jpegStream.reset();
+        yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, jpegStream);
+        return jpegStream.toByteArray();
+    }
+
+    public interface RequestListener {
+        /** Called on the requesting thread, implementations must not block. */
+        void onSnapshotRequested();
+    }
+
+    public interface StreamListener {
+        /** Called on the encoder worker, implementations must not block. */
+        void onStreamFrame(byte[] image, long timestampNs);
+
+        void onStreamClosed();
+    }
+
+    private static class Subscription {
+        final StreamListener listener;
+        final SnapshotOptions options;
+        final long minIntervalNs;
+        volatile long lastFrameNs = Long.MIN_VALUE;
+
+        Subscription(StreamListener listener, SnapshotOptions options, int maxFps) {
+            this.listener = listener;
+            this.options = options;
+            this.minIntervalNs = maxFps > 0 ? TimeUnit.SECONDS.toNanos(1) / maxFps : 0;
+        }
+
+        boolean isDue(long timestampNs) {
+            return lastFrameNs == Long.MIN_VALUE || timestampNs - lastFrameNs >= minIntervalNs;
+        }
+    }
+
+    /** Future that is completed by the encoder worker instead of running a task itself. */
+    private static class PendingSnapshot extends FutureTask<Snapshot> {
+        PendingSnapshot() {
+            super(() -> {
+                throw new IllegalStateException("Snapshots are completed by the encoder worker");
+            });
+        }
+
+        void complete(Snapshot snapshot) {
+            set(snapshot);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
     }
 }
@@ -0,0 +1,59 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Times the phases from service creation to the first frame. Each {@link #mark} closes the phase
+ * that started at the previous mark, the last phase logs a summary. Rendered on /metrics as
+ * {@code octocam_startup_phase_seconds}.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private final long startNs = System.nanoTime();
+    private long lastNs = startNs;
+    // Guarded by this.
+    private final List<String> phases = new ArrayList<>();
+    private final List<Long> durationsNs = new ArrayList<>();
+
+    /** Ends the named phase, only the first mark of a name counts. */
+    public synchronized void mark(String phase) {
+        if (phases.contains(phase))
+            return;
+        long now = System.nanoTime();
+        phases.add(phase);
+        durationsNs.add(now - lastNs);
+        lastNs = now;
+    }
+
+    /** Marks the final phase and logs the whole startup. */
+    public synchronized void finish(String phase) {
+        if (phases.contains(phase))
+            return;
+        mark(phase);
+        Log.i(TAG, toString());
+    }
+
+    public synchronized void render(StringBuilder out) {
+        Metrics.writeHeader(out, "octocam_startup_phase_seconds", "gauge", "Duration of each phase of the last service startup");
+        for (int i = 0; i < phases.size(); i++)
+            Metrics.writeSample(out, "octocam_startup_phase_seconds", "phase=\"" + phases.get(i) + "\"", durationsNs.get(i) / 1e9);
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder("Startup took ")
+                .append((lastNs - startNs) / 1000000).append(" ms:");
+        for (int i = 0; i < phases.size(); i++)
+            out.append(String.format(Locale.US, " %s %.1f ms,", phases.get(i), durationsNs.get(i) / 1e6));
+        out.setLength(out.length() - 1);
+        return out.toString();
+    }
+}
@@ -0,0 +1,365 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Records time-lapse frames on the phone itself instead of having OctoPrint pull them over Wi-Fi.
+ * <p>
+ * JPEGs are appended to a fixed size data file that is used as a ring, the oldest frames are
+ * overwritten once it is full. A memory-mapped index keeps timestamp, offset and length of the
+ * most recent frames so they survive a service restart. Frames come from
+ * {@link SnapshotSink#requestSnapshot}, all disk work happens on the recorder's own thread.
+ */
+public class TimelapseRecorder {
+    private static final String TAG = "TimelapseRecorder";
+
+    private static final int MAGIC = 0x4F43544C; // "OCTL"
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 8192;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 32;
+    private static final SnapshotOptions FRAME_OPTIONS = new SnapshotOptions(0, 0, 95);
+    // Each download holds a thread while the client reads, more are refused.
+    private static final int MAX_ARCHIVES = 2;
+
+    // Header: magic, version, max entries, data capacity, next sequence, logical end of data.
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_MAX_ENTRIES = 8;
+    private static final int HEADER_CAPACITY = 12;
+    private static final int HEADER_NEXT_SEQUENCE = 16;
+    private static final int HEADER_LOGICAL_END = 24;
+    // Entry: sequence, timestamp in ms, logical offset in the data ring, length.
+    private static final int ENTRY_SEQUENCE = 0;
+    private static final int ENTRY_TIMESTAMP = 8;
+    private static final int ENTRY_OFFSET = 16;
+    private static final int ENTRY_LENGTH = 24;
+
+    private final SnapshotSink sink;
+    private final int capacityBytes;
+    private final RandomAccessFile dataFile;
+    private final FileChannel data;
+    private final RandomAccessFile indexFile;
+    private final MappedByteBuffer index;
+
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean capturing = new AtomicBoolean(false);
+    private ScheduledFuture<?> timer;
+    private int intervalSeconds;
+    // Bumped by clear(), guarded by this. An append that started before a clear is dropped.
+    private long generation;
+
+    private final ExecutorService archiveExecutor = new ThreadPoolExecutor(0, MAX_ARCHIVES, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> new Thread(r, "TimelapseArchive"));
+    private final Semaphore archives = new Semaphore(MAX_ARCHIVES);
+
+    public TimelapseRecorder(File directory, int capacityBytes, SnapshotSink sink) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        this.sink = sink;
+        this.capacityBytes = capacityBytes;
+
+        dataFile = new RandomAccessFile(new File(directory, "frames.dat"), "rw");
+        data = dataFile.getChannel();
+        indexFile = new RandomAccessFile(new File(directory, "index.dat"), "rw");
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) MAX_ENTRIES * ENTRY_SIZE);
+
+        if (index.getInt(HEADER_MAGIC) != MAGIC || index.getInt(HEADER_VERSION) != VERSION
+                || index.getInt(HEADER_MAX_ENTRIES) != MAX_ENTRIES || index.getInt(HEADER_CAPACITY) != capacityBytes) {
+            Log.i(TAG, "Initializing new time-lapse ring of " + capacityBytes / 1048576 + " MB");
+            resetIndex();
+        }
+
+        // Triggers that arrive while a capture is running are dropped, see capture().
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "TimelapseRecorder"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.executor = executor;
+    }
+
+    private synchronized void resetIndex() {
+        index.putInt(HEADER_MAGIC, MAGIC);
+        index.putInt(HEADER_VERSION, VERSION);
+        index.putInt(HEADER_MAX_ENTRIES, MAX_ENTRIES);
+        index.putInt(HEADER_CAPACITY, capacityBytes);
+        index.putLong(HEADER_NEXT_SEQUENCE, 0);
+        index.putLong(HEADER_LOGICAL_END, 0);
+    }
+
+    //region Triggers
+
+    /** Captures a frame every {@code intervalSeconds}, or stops the timer when it is 0. */
+    public synchronized void setInterval(int intervalSeconds) {
+        if (timer != null)
+            timer.cancel(false);
+        timer = null;
+        this.intervalSeconds = intervalSeconds;
+        if (intervalSeconds > 0) {
+            timer = executor.scheduleAtFixedRate(this::capture, 0, intervalSeconds, TimeUnit.SECONDS);
+            Log.i(TAG, "Recording a frame every " + intervalSeconds + " s");
+        }
+    }
+
+    /**
+     * Captures a single frame in the background.
+     *
+     * @return false when the trigger was dropped because a capture is still running.
+     */
+    public boolean trigger() {
+        if (capturing.get())
+            return false;
+        try {
+            executor.execute(this::capture);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void capture() {
+        if (!capturing.compareAndSet(false, true)) {
+            Log.d(TAG, "Still capturing, dropping trigger");
+            return;
+        }
+        try {
+            Snapshot snapshot = sink.requestSnapshot(FRAME_OPTIONS).get(SnapshotSink.DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            append(snapshot.capturedAtMs, snapshot.image);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Timed out waiting for a time-lapse frame");
+        } catch (ExecutionException | IOException e) {
+            Log.e(TAG, "Failed to record time-lapse frame", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            capturing.set(false);
+        }
+    }
+
+    //endregion
+
+    //region Ring buffer
+
+    private void append(long timestampMs, byte[] image) throws IOException {
+        if (image.length > capacityBytes)
+            throw new IOException("Frame of " + image.length + " bytes does not fit the ring");
+
+        long sequence;
+        long offset;
+        long appendGeneration;
+        synchronized (this) {
+            appendGeneration = generation;
+            sequence = index.getLong(HEADER_NEXT_SEQUENCE);
+            offset = index.getLong(HEADER_LOGICAL_END);
+            // Frames never wrap around the end of the file, skip to the start instead.
+            if (offset % capacityBytes + image.length > capacityBytes)
+                offset += capacityBytes - offset % capacityBytes;
+            // Publish the new end first so readers stop trusting the frames we overwrite.
+            index.putLong(HEADER_LOGICAL_END, offset + image.length);
+        }
+
+        data.write(ByteBuffer.wrap(image), offset % capacityBytes);
+
+        synchronized (this) {
+            if (generation != appendGeneration) {
+                Log.d(TAG, "Recording was cleared while writing, dropping frame");
+                return;
+            }
+            int entry = entryPosition(sequence);
+            index.putLong(entry + ENTRY_SEQUENCE, sequence);
+            index.putLong(entry + ENTRY_TIMESTAMP, timestampMs);
+            index.putLong(entry + ENTRY_OFFSET, offset);
+            index.putInt(entry + ENTRY_LENGTH, image.length);
+            index.putLong(HEADER_NEXT_SEQUENCE, sequence + 1);
+        }
+    }
+
+    private static int entryPosition(long sequence) {
+        return HEADER_SIZE + (int) (sequence % MAX_ENTRIES) * ENTRY_SIZE;
+    }
+
+    // Must hold the lock.
+    private boolean isValid(long sequence, long offset) {
+        long nextSequence = index.getLong(HEADER_NEXT_SEQUENCE);
+        long logicalEnd = index.getLong(HEADER_LOGICAL_END);
+        return sequence < nextSequence && sequence >= nextSequence - MAX_ENTRIES
+                && logicalEnd - offset <= capacityBytes;
+    }
+
+    public synchronized List<Frame> getFrames() {
+        long nextSequence = index.getLong(HEADER_NEXT_SEQUENCE);
+        List<Frame> frames = new ArrayList<>();
+        for (long sequence = Math.max(0, nextSequence - MAX_ENTRIES); sequence < nextSequence; sequence++) {
+            int entry = entryPosition(sequence);
+            long offset = index.getLong(entry + ENTRY_OFFSET);
+            if (index.getLong(entry + ENTRY_SEQUENCE) != sequence || !isValid(sequence, offset))
+                continue;
+            frames.add(new Frame(sequence, index.getLong(entry + ENTRY_TIMESTAMP), offset, index.getInt(entry + ENTRY_LENGTH)));
+        }
+        return frames;
+    }
+
+    private synchronized Frame getFrame(long sequence) {
+        int entry = entryPosition(sequence);
+        long offset = index.getLong(entry + ENTRY_OFFSET);
+        if (index.getLong(entry + ENTRY_SEQUENCE) != sequence || !isValid(sequence, offset))
+            return null;
+        return new Frame(sequence, index.getLong(entry + ENTRY_TIMESTAMP), offset, index.getInt(entry + ENTRY_LENGTH));
+    }
+
+    /** @return the JPEG of the given frame, or null when it doesn't exist or was overwritten. */
+    public byte[] readFrame(long sequence) throws IOException {
+        Frame frame = getFrame(sequence);
+        if (frame == null)
+            return null;
+        return readFrame(frame);
+    }
+
+    private byte[] readFrame(Frame frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        long position = frame.offset % capacityBytes;
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of time-lapse data");
+        }
+        // The writer may have lapped us while reading.
+        synchronized (this) {
+            if (!isValid(frame.sequence, frame.offset))
+                return null;
+        }
+        return buffer.array();
+    }
+
+    public synchronized void clear() {
+        generation++;
+        resetIndex();
+        Log.i(TAG, "Cleared time-lapse frames");
+    }
+
+    //endregion
+
+    //region HTTP helpers
+
+    public JSONObject toJson() throws JSONException {
+        JSONArray frames = new JSONArray();
+        for (Frame frame : getFrames()) {
+            JSONObject json = new JSONObject();
+            json.put("sequence", frame.sequence);
+            json.put("timestamp", frame.timestampMs);
+            json.put("length", frame.length);
+            frames.put(json);
+        }
+        JSONObject message = new JSONObject();
+        synchronized (this) {
+            message.put("interval", intervalSeconds);
+        }
+        message.put("capacity", capacityBytes);
+        message.put("frames", frames);
+        return message;
+    }
+
+    /**
+     * Streams all frames as a zip without compression, JPEGs don't get any smaller.
+     *
+     * @return null when {@link #MAX_ARCHIVES} downloads are already running.
+     */
+    public InputStream openArchive() throws IOException {
+        if (!archives.tryAcquire())
+            return null;
+        List<Frame> frames = getFrames();
+        PipedInputStream in = new PipedInputStream(64 * 1024);
+        PipedOutputStream out = new PipedOutputStream(in);
+        try {
+            archiveExecutor.execute(() -> writeArchive(frames, out));
+        } catch (RejectedExecutionException e) {
+            archives.release();
+            return null;
+        }
+        return in;
+    }
+
+    private void writeArchive(List<Frame> frames, OutputStream out) {
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.setLevel(0);
+            for (Frame frame : frames) {
+                byte[] image = readFrame(frame);
+                if (image == null)
+                    continue;
+                zip.putNextEntry(new ZipEntry(String.format(Locale.US, "frame_%08d.jpg", frame.sequence)));
+                zip.write(image);
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            // Most likely the client went away.
+            Log.d(TAG, "Time-lapse archive aborted: " + e.getMessage());
+        } finally {
+            archives.release();
+        }
+    }
+
+    //endregion
+
+    public void close() {
+        archiveExecutor.shutdownNow();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            index.force();
+        }
+        try {
+            data.close();
+            dataFile.close();
+            indexFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static class Frame {
+        public final long sequence;
+        public final long timestampMs;
+        final long offset;
+        public final int length;
+
+        Frame(long sequence, long timestampMs, long offset, int length) {
+            this.sequence = sequence;
+            this.timestampMs = timestampMs;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One quality layer a viewer can receive: resolution scale, bitrate cap and framerate cap.
+ * Layers are configured as one line per layer, {@code name scale kbps fps}.
+ */
+public class VideoLayer {
+    private static final String TAG = "VideoLayer";
+
+    public static final String DEFAULT_LAYERS = "high 1 4000 30\nmedium 2 1200 30\nlow 4 300 15";
+
+    public final String name;
+    public final double scaleResolutionDownBy;
+    public final int maxBitrateBps;
+    public final int maxFramerate;
+
+    public VideoLayer(String name, double scaleResolutionDownBy, int maxBitrateBps, int maxFramerate) {
+        if (scaleResolutionDownBy < 1 || maxBitrateBps <= 0 || maxFramerate <= 0)
+            throw new IllegalArgumentException("Invalid layer " + name);
+        this.name = name;
+        this.scaleResolutionDownBy = scaleResolutionDownBy;
+        this.maxBitrateBps = maxBitrateBps;
+        this.maxFramerate = maxFramerate;
+    }
+
+    /**
+     * Parses the layer configuration, falling back to {@link #DEFAULT_LAYERS} when nothing valid
+     * is configured. The result is sorted from the highest to the lowest bitrate.
+     */
+    public static List<VideoLayer> parse(String layers) {
+        List<VideoLayer> result = parseLines(layers);
+        if (result.isEmpty())
+            result = parseLines(DEFAULT_LAYERS);
+        Collections.sort(result, (a, b) -> Integer.compare(b.maxBitrateBps, a.maxBitrateBps));
+        return result;
+    }
+
+    private static List<VideoLayer> parseLines(String layers) {
+        List<VideoLayer> result = new ArrayList<>();
+        if (layers == null)
+            return result;
+
+        for (String line : layers.split("[\r\n]+")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] parts = line.split("\\s+");
+            try {
+                result.add(new VideoLayer(parts[0], Double.parseDouble(parts[1]),
+                        Integer.parseInt(parts[2]) * 1000, Integer.parseInt(parts[3])));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring invalid layer: " + line);
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s (1/%.1f, %d kbps, %d fps)",
+                name, scaleResolutionDownBy, maxBitrateBps / 1000, maxFramerate);
+    }
+}
@@ -6,40 +6,140 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
 
 public class WebServer extends NanoHTTPD {
     private static final String TAG = "WEBSERVER";
+    private static final long CANDIDATE_POLL_TIMEOUT_MS = 10000;
+
+    // Media requests can hold at most MEDIA_PERMITS of the connection threads, the remainder is
+    // left for signaling so offers and candidates are answered while snapshots saturate the box.
+    // Threads belong to connections rather than requests, so media connections are closed after
+    // each response, an idle keep-alive would otherwise hold a thread outside of any lane.
+    static final int CONNECTION_THREADS = 32;
+    static final int SIGNALING_PERMITS = 16;
+    static final int MEDIA_PERMITS = 12;
+    static final int MAX_REQUESTS_PER_CLIENT = 6;
+    private static final byte[] OVERLOADED_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
 
     private final RequestListener listener;
+    private final RequestLimiter limiter;
+    private volatile int snapshotMaxAgeSeconds;
 
     public WebServer(RequestListener listener) {
-        super(8080);
+        this(8080, listener, new RequestLimiter(SIGNALING_PERMITS, MEDIA_PERMITS, MAX_REQUESTS_PER_CLIENT));
+    }
+
+    // Used by the load test, port 0 picks a free port.
+    WebServer(int port, RequestListener listener, RequestLimiter limiter) {
+        super(port);
         this.listener = listener;
+        this.limiter = limiter;
+        setAsyncRunner(new BoundedAsyncRunner());
+    }
+
+    /** Snapshots encoded less than this long ago are served from memory, 0 disables it. */
+    public void setSnapshotMaxAge(int seconds) {
+        snapshotMaxAgeSeconds = seconds;
     }
 
     public void start() throws IOException {
         start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
-        Log.i(TAG, "Running! Point your browsers to http://<phone-ip>:8080/");
+        Log.i(TAG, "Running! Point your browsers to http://<phone-ip>:" + getListeningPort() + "/");
     }
 
     @Override
     public Response serve(IHTTPSession session) {
+        long start = System.nanoTime();
+        String uri = session.getUri();
+        RequestLimiter.Lane lane = RequestLimiter.getLane(uri);
+        RequestLimiter.Permit permit = limiter.tryAcquire(lane, session.getRemoteIpAddress());
+        Response response;
+        if (permit == null) {
+            response = unavailable();
+        } else {
+            try {
+                response = route(session);
+            } catch (RuntimeException e) {
+                permit.release();
+                throw e;
+            }
+            if (response.getData() == null)
+                permit.release();
+            else
+                response.setData(permit.releaseOnClose(response.getData()));
+        }
+        if (lane == RequestLimiter.Lane.MEDIA)
+            response.addHeader("Connection", "close");
+        Metrics.recordRequest(Metrics.getRouteIndex(uri), System.nanoTime() - start);
+        return response;
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+        // Responses are small and written in pieces, don't let Nagle hold them back for an ACK.
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        return new Connection(inputStream, socket);
+    }
+
+    private Response route(IHTTPSession session) {
         String uri = session.getUri();
         switch (uri) {
             case "/webcam":
                 return handleOfferRequest(session);
+            case "/webcam/candidates":
+                return handleCandidatesRequest(session);
             case "/snapshot":
                 return handleSnapshotRequest(session);
+            case "/stream":
+                return handleStreamRequest(session);
+            case "/viewers":
+                return handleViewersRequest(session);
+            case "/config":
+                return handleConfigRequest(session);
+            case "/metrics":
+                return handleMetricsRequest(session);
+            case "/timelapse":
+            case "/timelapse/frame":
+            case "/timelapse/download":
+            case "/timelapse/trigger":
+            case "/timelapse/start":
+            case "/timelapse/stop":
+            case "/timelapse/clear":
+                return handleTimelapseRequest(session, uri.substring("/timelapse".length()));
             default:
                 return badRequest();
         }
@@ -78,7 +178,13 @@ public class WebServer extends NanoHTTPD {
             String type = obj.getString("type");
             if (type.equals(OFFER.canonicalForm())) {
                 Log.d(TAG, "Received offer");
-                String result = listener.onOffer(sdp);
+                String result;
+                try {
+                    result = listener.onOffer(sdp, obj.optBoolean("trickle", false));
+                } catch (UnavailableException e) {
+                    Log.w(TAG, "Rejecting offer: " + e.getMessage());
+                    return unavailable();
+                }
                 if (result == null)
                     return badRequest(Status.INTERNAL_ERROR);
                 else
@@ -91,19 +197,335 @@ public class WebServer extends NanoHTTPD {
         }
     }
 
+    /**
+     * Trickle ICE: GET long-polls for the local candidates of a session, POST adds the remote
+     * candidates of the browser to it.
+     */
+    private Response handleCandidatesRequest(IHTTPSession session) {
+        Method method = session.getMethod();
+        if (method == Method.OPTIONS)
+            return goodRequest();
+
+        if (method == Method.GET) {
+            String sessionId = session.getParms().get("session");
+            if (sessionId == null)
+                return badRequest();
+            String result = listener.onLocalCandidates(sessionId, CANDIDATE_POLL_TIMEOUT_MS);
+            if (result == null)
+                return badRequest(Status.NOT_FOUND);
+            return goodRequest(result);
+        }
+
+        if (method != Method.POST)
+            return badRequest();
+
+        Map<String, String> files = new HashMap<>();
+        try {
+            session.parseBody(files);
+        } catch (IOException | ResponseException e) {
+            e.printStackTrace();
+            return badRequest();
+        }
+
+        String postData = files.get("postData");
+        if (postData == null)
+            return badRequest();
+
+        try {
+            JSONObject obj = new JSONObject(postData);
+            if (!listener.onRemoteCandidates(obj.getString("session"), obj.getJSONArray("candidates")))
+                return badRequest(Status.NOT_FOUND);
+            return goodRequest();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return badRequest();
+        }
+    }
+
     private Response handleSnapshotRequest(IHTTPSession session) {
         Method method = session.getMethod();
         if (method != Method.OPTIONS && method != Method.GET)
             return badRequest();
 
-        byte[] image = listener.onSnapshot();
+        SnapshotOptions options = getSnapshotOptions(session);
+        if (options == null)
+            return badRequest();
+
+        // A recent enough encode is served from memory without waiting for the camera.
+        long maxAgeMs = snapshotMaxAgeSeconds * 1000L;
+        Snapshot snapshot = maxAgeMs > 0 ? listener.onCachedSnapshot(options, maxAgeMs) : null;
+        // When the client already has the newest frame there is nothing to encode.
+        if (snapshot == null && isConditional(session)) {
+            Snapshot latest = listener.onLatestSnapshot(options);
+            if (latest != null && isNotModified(session, latest))
+                snapshot = latest;
+        }
+        if (snapshot == null) {
+            try {
+                snapshot = listener.onSnapshot(options);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Timed out waiting for a snapshot");
+                return unavailable();
+            }
+        }
+        if (snapshot == null)
+            return badRequest(Status.INTERNAL_ERROR);
+
+        Response response;
+        if (isNotModified(session, snapshot)) {
+            response = newFixedLengthResponse(Status.NOT_MODIFIED, "image/jpg", "");
+        } else {
+            response = newFixedLengthResponse(
+                    Status.OK,
+                    "image/jpg",
+                    new ByteArrayInputStream(snapshot.image),
+                    snapshot.image.length
+            );
+        }
+        response.addHeader("ETag", snapshot.getETag());
+        response.addHeader("Last-Modified", formatHttpDate(snapshot.capturedAtMs));
+        long freshMs = maxAgeMs - snapshot.getAgeMs();
+        response.addHeader("Cache-Control", freshMs > 0 ? "max-age=" + freshMs / 1000 : "no-cache");
+        return response;
+    }
+
+    private static boolean isConditional(IHTTPSession session) {
+        return session.getHeaders().containsKey("if-none-match") || session.getHeaders().containsKey("if-modified-since");
+    }
+
+    /** If-None-Match takes precedence over If-Modified-Since, as in RFC 7232. */
+    private static boolean isNotModified(IHTTPSession session, Snapshot snapshot) {
+        String ifNoneMatch = session.getHeaders().get("if-none-match");
+        if (ifNoneMatch != null) {
+            String etag = snapshot.getETag();
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/"))
+                    candidate = candidate.substring(2);
+                if (candidate.equals("*") || candidate.equals(etag))
+                    return true;
+            }
+            return false;
+        }
+
+        String ifModifiedSince = session.getHeaders().get("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                Date since = createHttpDateFormat().parse(ifModifiedSince);
+                // HTTP dates only have second precision.
+                return since != null && snapshot.capturedAtMs / 1000 <= since.getTime() / 1000;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String formatHttpDate(long timeMs) {
+        return createHttpDateFormat().format(new Date(timeMs));
+    }
 
-        return newFixedLengthResponse(
-                Status.OK,
-                "image/jpg",
-                new ByteArrayInputStream(image),
-                image.length
-        );
+    // SimpleDateFormat isn't thread safe, and requests are served concurrently.
+    private static SimpleDateFormat createHttpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private Response handleStreamRequest(IHTTPSession session) {
+        if (session.getMethod() != Method.GET)
+            return badRequest();
+
+        SnapshotOptions options = getSnapshotOptions(session);
+        int maxFps;
+        try {
+            maxFps = getIntParameter(session, "fps", 0);
+        } catch (NumberFormatException e) {
+            return badRequest();
+        }
+        if (options == null || maxFps < 0)
+            return badRequest();
+
+        Log.d(TAG, "Starting MJPEG stream " + options + " for " + session.getRemoteIpAddress());
+        Response response = newChunkedResponse(Status.OK, MjpegStream.CONTENT_TYPE, listener.onStream(options, maxFps));
+        response.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+        response.addHeader("Pragma", "no-cache");
+        return addHeaders(response);
+    }
+
+    /** GET describes the viewers, POST pins one to a layer with {session, layer}, null for automatic. */
+    private Response handleViewersRequest(IHTTPSession session) {
+        Method method = session.getMethod();
+        if (method == Method.OPTIONS)
+            return goodRequest();
+
+        if (method == Method.POST) {
+            Map<String, String> files = new HashMap<>();
+            try {
+                session.parseBody(files);
+            } catch (IOException | ResponseException e) {
+                e.printStackTrace();
+                return badRequest();
+            }
+
+            String postData = files.get("postData");
+            if (postData == null)
+                return badRequest();
+
+            try {
+                JSONObject obj = new JSONObject(postData);
+                String layer = obj.isNull("layer") ? null : obj.getString("layer");
+                if (!listener.onSelectLayer(obj.getString("session"), layer))
+                    return badRequest(Status.NOT_FOUND);
+                return goodRequest();
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return badRequest();
+            }
+        }
+
+        if (method != Method.GET)
+            return badRequest();
+
+        String result = listener.onViewers();
+        if (result == null)
+            return badRequest(Status.INTERNAL_ERROR);
+        return goodRequest(result);
+    }
+
+    /**
+     * GET describes the live configuration, POST changes any of width and height, framerate and
+     * codecs without restarting the stream. An unsupported format is answered with a 400 and the
+     * reason as body.
+     */
+    private Response handleConfigRequest(IHTTPSession session) {
+        Method method = session.getMethod();
+        if (method == Method.OPTIONS)
+            return goodRequest();
+
+        if (method == Method.GET)
+            return goodRequest(listener.onGetConfig());
+        if (method != Method.POST)
+            return badRequest();
+
+        Map<String, String> files = new HashMap<>();
+        try {
+            session.parseBody(files);
+        } catch (IOException | ResponseException e) {
+            e.printStackTrace();
+            return badRequest();
+        }
+
+        String postData = files.get("postData");
+        if (postData == null)
+            return badRequest();
+
+        try {
+            return goodRequest(listener.onConfig(new JSONObject(postData)));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return badRequest();
+        } catch (IllegalArgumentException e) {
+            return addHeaders(newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT + "; charset=UTF-8", e.getMessage()));
+        }
+    }
+
+    private Response handleMetricsRequest(IHTTPSession session) {
+        if (session.getMethod() != Method.GET)
+            return badRequest();
+
+        StringBuilder out = new StringBuilder(8192);
+        Metrics.render(out);
+        listener.onMetrics(out);
+        return addHeaders(newFixedLengthResponse(Status.OK, Metrics.CONTENT_TYPE, out.toString()));
+    }
+
+    /**
+     * GET lists the recorded frames, fetches one with ?sequence= or downloads all of them as a
+     * zip. POST triggers a single frame, starts the timer with ?interval= in seconds, stops it
+     * or clears the recording.
+     */
+    private Response handleTimelapseRequest(IHTTPSession session, String action) {
+        Method method = session.getMethod();
+        if (method == Method.OPTIONS)
+            return goodRequest();
+
+        TimelapseRecorder recorder = listener.getTimelapseRecorder();
+        if (recorder == null)
+            return unavailable();
+
+        try {
+            if (method == Method.GET) {
+                switch (action) {
+                    case "":
+                        return goodRequest(recorder.toJson().toString());
+                    case "/frame":
+                        String sequence = session.getParms().get("sequence");
+                        if (sequence == null)
+                            return badRequest();
+                        byte[] image = recorder.readFrame(Long.parseLong(sequence));
+                        if (image == null)
+                            return badRequest(Status.NOT_FOUND);
+                        return addHeaders(newFixedLengthResponse(Status.OK, "image/jpg", new ByteArrayInputStream(image), image.length));
+                    case "/download":
+                        InputStream archive = recorder.openArchive();
+                        if (archive == null)
+                            return unavailable();
+                        Response response = newChunkedResponse(Status.OK, "application/zip", archive);
+                        response.addHeader("Content-Disposition", "attachment; filename=\"timelapse.zip\"");
+                        return addHeaders(response);
+                    default:
+                        return badRequest();
+                }
+            }
+
+            if (method != Method.POST)
+                return badRequest();
+            switch (action) {
+                case "/trigger":
+                    if (!recorder.trigger())
+                        return unavailable();
+                    return goodRequest();
+                case "/start":
+                    int interval = getIntParameter(session, "interval", 10);
+                    if (interval <= 0)
+                        return badRequest();
+                    recorder.setInterval(interval);
+                    return goodRequest();
+                case "/stop":
+                    recorder.setInterval(0);
+                    return goodRequest();
+                case "/clear":
+                    recorder.clear();
+                    return goodRequest();
+                default:
+                    return badRequest();
+            }
+        } catch (NumberFormatException e) {
+            return badRequest();
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            return badRequest(Status.INTERNAL_ERROR);
+        }
+    }
+
+    private static SnapshotOptions getSnapshotOptions(IHTTPSession session) {
+        try {
+            return new SnapshotOptions(
+                    getIntParameter(session, "width", 0),
+                    getIntParameter(session, "height", 0),
+                    getIntParameter(session, "quality", SnapshotOptions.DEFAULT_QUALITY));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Throws NumberFormatException, an IllegalArgumentException, for malformed values.
+    private static int getIntParameter(IHTTPSession session, String name, int defaultValue) {
+        String value = session.getParms().get(name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        return Integer.parseInt(value);
     }
 
     //region Response utility functions
@@ -115,6 +537,12 @@ public class WebServer extends NanoHTTPD {
         return addHeaders(newFixedLengthResponse(statusCode, MIME_PLAINTEXT + "; charset=UTF-8", ""));
     }
 
+    private Response unavailable() {
+        Response response = badRequest(Status.SERVICE_UNAVAILABLE);
+        response.addHeader("Retry-After", "1");
+        return response;
+    }
+
     private Response goodRequest() {
         return goodRequest("{}");
     }
@@ -133,9 +561,117 @@ public class WebServer extends NanoHTTPD {
         return response;
     }
 
+    private class Connection extends ClientHandler {
+        final Socket socket;
+
+        Connection(InputStream inputStream, Socket socket) {
+            super(inputStream, socket);
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * Replaces NanoHTTPD's thread per connection with a bounded pool. Connections that don't get
+     * a thread are answered with a 503 right away instead of queueing.
+     */
+    private class BoundedAsyncRunner implements AsyncRunner {
+        private final Set<ClientHandler> running = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, CONNECTION_THREADS,
+                30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> new Thread(r, "WebServerRequest"));
+
+        @Override
+        public void exec(ClientHandler handler) {
+            running.add(handler);
+            try {
+                executor.execute(handler);
+            } catch (RejectedExecutionException e) {
+                running.remove(handler);
+                Metrics.HTTP_REJECTED_CONNECTION.increment();
+                reject((Connection) handler);
+            }
+        }
+
+        private void reject(Connection connection) {
+            try {
+                OutputStream out = connection.socket.getOutputStream();
+                out.write(OVERLOADED_RESPONSE);
+                out.flush();
+            } catch (IOException e) {
+                // The client is gone already.
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Override
+        public void closed(ClientHandler handler) {
+            running.remove(handler);
+        }
+
+        @Override
+        public void closeAll() {
+            for (ClientHandler handler : running)
+                handler.close();
+            running.clear();
+        }
+    }
+
     public interface RequestListener {
-        String onOffer(String sdp);
+        /**
+         * @param trickle when true the answer is returned before ICE gathering completes and
+         *                the candidates are fetched separately.
+         */
+        String onOffer(String sdp, boolean trickle) throws UnavailableException;
+
+        String onLocalCandidates(String sessionId, long timeoutMs);
+
+        boolean onRemoteCandidates(String sessionId, JSONArray candidates) throws JSONException;
+
+        /** Waits for the next frame, or returns the cached encode when no frame arrived since. */
+        Snapshot onSnapshot(SnapshotOptions options) throws TimeoutException;
+
+        /** @return an encode of a frame at most {@code maxAgeMs} old without waiting, or null. */
+        Snapshot onCachedSnapshot(SnapshotOptions options, long maxAgeMs);
 
-        byte[] onSnapshot();
+        /** @return the encode of the newest frame if there is one, regardless of age, or null. */
+        Snapshot onLatestSnapshot(SnapshotOptions options);
+
+        InputStream onStream(SnapshotOptions options, int maxFps);
+
+        /** JSON description of the connected viewers and their bitrate controllers. */
+        String onViewers();
+
+        /**
+         * Pins a viewer to a layer, or back to automatic selection when {@code layer} is null.
+         *
+         * @return false when the session or layer doesn't exist.
+         */
+        boolean onSelectLayer(String sessionId, String layer);
+
+        /** JSON of the live configuration: width, height, framerate and codecs. */
+        String onGetConfig();
+
+        /**
+         * Applies the given subset of width and height, framerate and codecs while the stream
+         * keeps running.
+         *
+         * @return the new configuration as {@link #onGetConfig()}, plus the sessions that have to
+         * renegotiate to pick up a changed codec set.
+         * @throws IllegalArgumentException when the camera doesn't support the requested format.
+         */
+        String onConfig(JSONObject config) throws JSONException;
+
+        /** Appends metrics that only the listener knows about, such as per connection stats. */
+        void onMetrics(StringBuilder out);
+
+        /** @return the time-lapse recorder, or null when it isn't available. */
+        TimelapseRecorder getTimelapseRecorder();
+    }
+
+    /** Thrown by a {@link RequestListener} that cannot take the request right now. */
+    public static class UnavailableException extends Exception {
+        public UnavailableException(String message) {
+            super(message);
+        }
     }
 }
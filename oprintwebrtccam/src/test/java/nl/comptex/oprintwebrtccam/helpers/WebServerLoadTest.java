@@ -0,0 +1,345 @@
+package nl.comptex.oprintwebrtccam.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives concurrent clients against {@link WebServer} on the host JVM, with a fake listener that
+ * answers after a fixed delay. Throughput, latency percentiles and peak thread count are
+ * printed. Tune with -Dloadtest.clients, -Dloadtest.requests, -Dloadtest.answerDelayMs and
+ * -Dloadtest.snapshotDelayMs.
+ */
+public class WebServerLoadTest {
+    private static final int CLIENTS = Integer.getInteger("loadtest.clients", 16);
+    private static final int REQUESTS_PER_CLIENT = Integer.getInteger("loadtest.requests", 100);
+    private static final long ANSWER_DELAY_MS = Long.getLong("loadtest.answerDelayMs", 5);
+    private static final long SNAPSHOT_DELAY_MS = Long.getLong("loadtest.snapshotDelayMs", 20);
+
+    private static final String OFFER = "{\"type\":\"offer\",\"sdp\":\"v=0\\r\\n\"}";
+    private static final String ANSWER = "{\"type\":\"answer\",\"sdp\":\"v=0\\r\\n\",\"session\":\"load-test\"}";
+    private static final byte[] JPEG = new byte[64 * 1024];
+
+    private WebServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void offers() throws Exception {
+        // Limits wide enough that every client is admitted, everything runs from one IP.
+        startServer(new RequestLimiter(CLIENTS, CLIENTS, CLIENTS * 2));
+        Result result = run("/webcam offers", CLIENTS, "/webcam", OFFER, REQUESTS_PER_CLIENT, null);
+        assertEquals(0, result.errors);
+        assertEquals(0, result.rejected);
+    }
+
+    @Test
+    public void snapshots() throws Exception {
+        // Media connections are closed after each response and the permit is released just after
+        // the client has read it, so a client reconnecting right away briefly holds two.
+        startServer(new RequestLimiter(CLIENTS, CLIENTS * 2, CLIENTS * 4));
+        Result result = run("/snapshot", CLIENTS, "/snapshot", null, REQUESTS_PER_CLIENT, null);
+        assertEquals(0, result.errors);
+        assertEquals(0, result.rejected);
+    }
+
+    @Test
+    public void signalingStaysResponsiveWhileMediaIsSaturated() throws Exception {
+        // Production lane sizes, without the per client limit since all clients share an IP.
+        startServer(new RequestLimiter(WebServer.SIGNALING_PERMITS, WebServer.MEDIA_PERMITS, Integer.MAX_VALUE));
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        int mediaClients = WebServer.MEDIA_PERMITS * 2;
+        Thread media = new Thread(() -> {
+            try {
+                run("/snapshot (saturating)", mediaClients, "/snapshot", null, Integer.MAX_VALUE, stop);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        media.start();
+        Thread.sleep(500);
+
+        Result signaling = run("/webcam under media load", 2, "/webcam", OFFER, REQUESTS_PER_CLIENT / 2, null);
+        stop.set(true);
+        media.join();
+
+        assertEquals(0, signaling.errors);
+        assertEquals(0, signaling.rejected);
+        // Generous bound, a starved lane waits for seconds rather than milliseconds.
+        assertTrue("p99 " + signaling.percentileMs(0.99) + " ms", signaling.percentileMs(0.99) < ANSWER_DELAY_MS + 500);
+    }
+
+    @Test
+    public void signalingSurvivesMoreMediaConnectionsThanThreads() throws Exception {
+        startServer(new RequestLimiter(WebServer.SIGNALING_PERMITS, WebServer.MEDIA_PERMITS, Integer.MAX_VALUE));
+
+        // Media clients that keep their connection open after the response, like browsers do.
+        List<Socket> media = new ArrayList<>();
+        try {
+            for (int i = 0; i < WebServer.CONNECTION_THREADS + 8; i++) {
+                Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+                socket.setSoTimeout(5000);
+                OutputStream out = socket.getOutputStream();
+                out.write("GET /snapshot HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                media.add(socket);
+            }
+            // Wait until every one of them got its status line, admitted or not.
+            for (Socket socket : media) {
+                InputStream in = socket.getInputStream();
+                int c;
+                while ((c = in.read()) != -1 && c != '\n') ;
+            }
+            Thread.sleep(200);
+
+            Result signaling = run("/webcam with idle media", 2, "/webcam", OFFER, 10, null);
+            assertEquals(0, signaling.errors);
+            assertEquals(0, signaling.rejected);
+        } finally {
+            for (Socket socket : media)
+                socket.close();
+        }
+    }
+
+    private void startServer(RequestLimiter limiter) throws IOException {
+        server = new WebServer(0, new FakeListener(), limiter);
+        server.start();
+    }
+
+    private Result run(String name, int clients, String path, String body, int requestsPerClient,
+                       AtomicBoolean stop) throws InterruptedException {
+        URL url;
+        try {
+            url = new URL("http://127.0.0.1:" + server.getListeningPort() + path);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        List<ClientResult> results = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < clients; i++) {
+            ClientResult result = new ClientResult(requestsPerClient == Integer.MAX_VALUE ? 1024 : requestsPerClient);
+            results.add(result);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int r = 0; r < requestsPerClient && (stop == null || !stop.get()); r++)
+                        result.record(url, body);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long startNs = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        Result result = new Result(results, System.nanoTime() - startNs);
+
+        System.out.println(String.format(Locale.US,
+                "%-28s %3d clients %6d ok %5d rejected %3d errors %8.1f req/s  p50 %6.1f ms  p99 %6.1f ms  p999 %6.1f ms  peak threads %d",
+                name, clients, result.latenciesNs.length, result.rejected, result.errors, result.getThroughput(),
+                result.percentileMs(0.5), result.percentileMs(0.99), result.percentileMs(0.999),
+                threads.getPeakThreadCount()));
+        return result;
+    }
+
+    private static class ClientResult {
+        long[] latenciesNs;
+        int count;
+        int rejected;
+        int errors;
+
+        ClientResult(int expected) {
+            latenciesNs = new long[expected];
+        }
+
+        void record(URL url, String body) throws InterruptedException {
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = request(url, body);
+            } catch (IOException e) {
+                errors++;
+                return;
+            }
+            long latency = System.nanoTime() - start;
+
+            if (status == 503) {
+                rejected++;
+                // Behave like a client that honours Retry-After, only much more impatient.
+                Thread.sleep(10);
+            } else if (status != 200) {
+                errors++;
+            } else {
+                if (count == latenciesNs.length)
+                    latenciesNs = Arrays.copyOf(latenciesNs, count * 2);
+                latenciesNs[count++] = latency;
+            }
+        }
+
+        private static int request(URL url, String body) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            if (body != null) {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                // Drain the body so the keep-alive connection is reused.
+                byte[] buffer = new byte[16 * 1024];
+                while (in.read(buffer) != -1) ;
+                in.close();
+            }
+            return status;
+        }
+    }
+
+    private static class Result {
+        final long[] latenciesNs;
+        final long elapsedNs;
+        int rejected;
+        int errors;
+
+        Result(List<ClientResult> clients, long elapsedNs) {
+            int total = 0;
+            for (ClientResult client : clients)
+                total += client.count;
+            latenciesNs = new long[total];
+            int offset = 0;
+            for (ClientResult client : clients) {
+                System.arraycopy(client.latenciesNs, 0, latenciesNs, offset, client.count);
+                offset += client.count;
+                rejected += client.rejected;
+                errors += client.errors;
+            }
+            Arrays.sort(latenciesNs);
+            this.elapsedNs = elapsedNs;
+        }
+
+        double getThroughput() {
+            return latenciesNs.length / (elapsedNs / 1e9);
+        }
+
+        double percentileMs(double percentile) {
+            if (latenciesNs.length == 0)
+                return Double.NaN;
+            int index = (int) Math.ceil(percentile * latenciesNs.length) - 1;
+            return latenciesNs[Math.max(0, Math.min(index, latenciesNs.length - 1))] / 1e6;
+        }
+    }
+
+    private static class FakeListener implements WebServer.RequestListener {
+        @Override
+        public String onOffer(String sdp, boolean trickle) {
+            sleep(ANSWER_DELAY_MS);
+            return ANSWER;
+        }
+
+        @Override
+        public String onLocalCandidates(String sessionId, long timeoutMs) {
+            return "{\"candidates\":[],\"complete\":true}";
+        }
+
+        @Override
+        public boolean onRemoteCandidates(String sessionId, JSONArray candidates) {
+            return true;
+        }
+
+        @Override
+        public Snapshot onSnapshot(SnapshotOptions options) {
+            sleep(SNAPSHOT_DELAY_MS);
+            return new Snapshot(JPEG, options, System.nanoTime(), System.currentTimeMillis());
+        }
+
+        @Override
+        public Snapshot onCachedSnapshot(SnapshotOptions options, long maxAgeMs) {
+            return null;
+        }
+
+        @Override
+        public Snapshot onLatestSnapshot(SnapshotOptions options) {
+            return null;
+        }
+
+        @Override
+        public InputStream onStream(SnapshotOptions options, int maxFps) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public String onViewers() {
+            return "[]";
+        }
+
+        @Override
+        public boolean onSelectLayer(String sessionId, String layer) {
+            return false;
+        }
+
+        @Override
+        public String onGetConfig() {
+            return "{}";
+        }
+
+        @Override
+        public String onConfig(JSONObject config) {
+            return "{}";
+        }
+
+        @Override
+        public void onMetrics(StringBuilder out) {
+        }
+
+        @Override
+        public TimelapseRecorder getTimelapseRecorder() {
+            return null;
+        }
+
+        private static void sleep(long ms) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}